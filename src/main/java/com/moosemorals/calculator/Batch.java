@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.util.Arrays;
+
+/**
+ * A list of button presses and values to run through
+ * {@link Engine#executeBatch(Batch)} in one go.
+ *
+ * Stored as two flat arrays, so building a batch of thousands of steps
+ * doesn't create thousands of objects.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class Batch {
+
+    // Marks a step that pushes a value rather than pressing a button
+    static final int PUSH = -1;
+
+    private int[] opcodes;
+    private double[] values;
+    private int size;
+
+    public Batch() {
+        opcodes = new int[16];
+        values = new double[16];
+        size = 0;
+    }
+
+    /**
+     * Add a button press.
+     *
+     * @param opcode button opcode, from {@link Config#getOpcode(String)}.
+     * Checked against the config when the batch runs
+     * @return this batch
+     */
+    public Batch command(int opcode) {
+        if (opcode < 0) {
+            throw new IllegalArgumentException("Bad opcode " + opcode);
+        }
+        add(opcode, 0);
+        return this;
+    }
+
+    /**
+     * Add a value to push onto the stack.
+     *
+     * @param value
+     * @return this batch
+     */
+    public Batch push(double value) {
+        add(PUSH, value);
+        return this;
+    }
+
+    /**
+     * Add all the steps of another batch.
+     *
+     * @param other
+     * @return this batch
+     */
+    public Batch append(Batch other) {
+        for (int i = 0; i < other.size; i += 1) {
+            add(other.opcodes[i], other.values[i]);
+        }
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    int getOpcode(int index) {
+        return opcodes[index];
+    }
+
+    double getValue(int index) {
+        return values[index];
+    }
+
+    private void add(int opcode, double value) {
+        if (size == opcodes.length) {
+            opcodes = Arrays.copyOf(opcodes, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        opcodes[size] = opcode;
+        values[size] = value;
+        size += 1;
+    }
+}
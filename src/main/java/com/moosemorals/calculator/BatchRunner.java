@@ -0,0 +1,394 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs lines of RPN through the button library without a GUI. Each line is
+ * a separate program, made of numbers, key characters, button labels and
+ * button names (in double quotes if they have spaces), separated by
+ * whitespace. For each line the value that would be in the display at the
+ * end is written out on its own line, or "Err" if the line couldn't be
+ * understood or failed to run.
+ *
+ * Lines are read in chunks and handed to a pool of workers, each with its
+ * own Engine sharing one set of compiled buttons. Results are written in
+ * the same order as the input. Lists of programs or inputs that are
+ * already in memory can be run on a fork-join pool instead.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class BatchRunner {
+
+    static final String ERROR = "Err";
+    private static final int CHUNK_SIZE = 1024;
+
+    private final Logger log = LoggerFactory.getLogger(BatchRunner.class);
+    private final Map<String, Integer> tokens;
+    private final int workers;
+    private final ButtonLibrary library;
+    private final ThreadLocal<Worker> worker;
+
+    /**
+     * @param config buttons to run
+     * @param workers number of threads to evaluate lines on
+     */
+    public BatchRunner(Config config, int workers) {
+        this(config, workers, null);
+    }
+
+    BatchRunner(Config config, int workers, Path scriptCacheDir) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        this.workers = workers;
+        this.library = new ButtonLibrary(config, scriptCacheDir);
+        this.tokens = buildTokens(config);
+        this.worker = ThreadLocal.withInitial(Worker::new);
+    }
+
+    private static Map<String, Integer> buildTokens(Config config) {
+        // Later puts win, so names are overridden by labels and labels by keys
+        Map<String, Integer> tokens = new HashMap<>();
+        for (int i = config.getButtonCount() - 1; i >= 0; i -= 1) {
+            tokens.put(config.getButton(i).getName(), i);
+        }
+        for (int i = config.getButtonCount() - 1; i >= 0; i -= 1) {
+            tokens.put(config.getButton(i).getLabel(), i);
+        }
+        for (int i = config.getButtonCount() - 1; i >= 0; i -= 1) {
+            char key = config.getButton(i).getKey();
+            if (key != 0 && !Character.isWhitespace(key)) {
+                tokens.put(String.valueOf(key), i);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Evaluate every line from in, writing results to out. Doesn't close
+     * either.
+     *
+     * @param in
+     * @param out
+     * @return number of lines read
+     * @throws IOException
+     */
+    public long run(BufferedReader in, Writer out) throws IOException {
+        if (workers == 1) {
+            long count = 0;
+            StringBuilder result = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                result.setLength(0);
+                evaluate(line, result);
+                out.append(result).append('\n');
+                count += 1;
+            }
+            out.flush();
+            return count;
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "batch-worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // Bounded so a fast reader can't fill memory with pending chunks
+        ArrayDeque<Future<StringBuilder>> pending = new ArrayDeque<>(workers * 2);
+        long count = 0;
+        try {
+            while (true) {
+                String[] chunk = new String[CHUNK_SIZE];
+                int size = 0;
+                while (size < CHUNK_SIZE && (chunk[size] = in.readLine()) != null) {
+                    size += 1;
+                }
+                if (size > 0) {
+                    final int chunkSize = size;
+                    pending.addLast(pool.submit(() -> evaluate(chunk, chunkSize)));
+                    count += size;
+                }
+                if (pending.size() == workers * 2 || (size < CHUNK_SIZE && !pending.isEmpty())) {
+                    out.append(pending.removeFirst().get());
+                }
+                if (size < CHUNK_SIZE) {
+                    while (!pending.isEmpty()) {
+                        out.append(pending.removeFirst().get());
+                    }
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Worker failed: " + ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        out.flush();
+        return count;
+    }
+
+    private StringBuilder evaluate(String[] lines, int count) {
+        StringBuilder result = new StringBuilder(count * 16);
+        for (int i = 0; i < count; i += 1) {
+            evaluate(lines[i], result);
+            result.append('\n');
+        }
+        return result;
+    }
+
+    /**
+     * Evaluate one line on this thread's engine, appending the result.
+     *
+     * @param line
+     * @param result
+     */
+    void evaluate(String line, StringBuilder result) {
+        Worker w = worker.get();
+        w.batch.clear();
+        if (!parse(line, w.batch)) {
+            result.append(ERROR);
+            return;
+        }
+        double value;
+        try {
+            value = w.run();
+        } catch (RuntimeException ex) {
+            // One bad line mustn't stop the rest
+            log.warn("Can't run [{}]: {}", line, ex.getMessage());
+            result.append(ERROR);
+            return;
+        }
+        appendValue(result, value);
+    }
+
+    /**
+     * Evaluate lots of lines at once, splitting them between the threads of
+     * a fork-join pool. Each thread uses its own Engine, so they don't share
+     * anything but the compiled buttons.
+     *
+     * @param lines programs to run
+     * @param pool pool to run them on
+     * @return the result of each line, in the same order, with NaN for
+     * lines that couldn't be understood or failed to run
+     */
+    public double[] evaluate(List<String> lines, ForkJoinPool pool) {
+        double[] results = new double[lines.size()];
+        pool.invoke(new Split(0, results.length, (from, to) -> {
+            Worker w = worker.get();
+            for (int i = from; i < to; i += 1) {
+                w.batch.clear();
+                results[i] = parse(lines.get(i), w.batch) ? w.runOrNaN() : Double.NaN;
+            }
+        }));
+        return results;
+    }
+
+    /**
+     * Run one program over lots of inputs, splitting them between the
+     * threads of a fork-join pool. For each input the values are pushed, in
+     * order, onto an empty stack and then the program is run.
+     *
+     * @param program steps to run for each input
+     * @param inputs values to start with
+     * @param pool pool to run them on
+     * @return the result for each input, in the same order, with NaN for
+     * inputs the program failed on
+     */
+    public double[] evaluate(Batch program, double[][] inputs, ForkJoinPool pool) {
+        double[] results = new double[inputs.length];
+        pool.invoke(new Split(0, results.length, (from, to) -> {
+            Worker w = worker.get();
+            for (int i = from; i < to; i += 1) {
+                w.batch.clear();
+                for (double value : inputs[i]) {
+                    w.batch.push(value);
+                }
+                w.batch.append(program);
+                results[i] = w.runOrNaN();
+            }
+        }));
+        return results;
+    }
+
+    private boolean parse(String line, Batch batch) {
+        int i = 0;
+        int length = line.length();
+        while (i < length) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i += 1;
+                continue;
+            }
+
+            int start;
+            int end;
+            if (c == '"') {
+                start = i + 1;
+                end = line.indexOf('"', start);
+                if (end < 0) {
+                    log.warn("Unclosed quote in [{}]", line);
+                    return false;
+                }
+                i = end + 1;
+            } else {
+                start = i;
+                end = i;
+                while (end < length && !Character.isWhitespace(line.charAt(end))) {
+                    end += 1;
+                }
+                i = end;
+            }
+
+            String token = line.substring(start, end);
+            if (c != '"' && isNumber(token)) {
+                try {
+                    batch.push(Double.parseDouble(token));
+                    continue;
+                } catch (NumberFormatException ex) {
+                    // Fall through to look for a button
+                }
+            }
+
+            Integer opcode = tokens.get(token);
+            if (opcode == null) {
+                log.warn("Unknown token [{}] in [{}]", token, line);
+                return false;
+            }
+            batch.command(opcode);
+        }
+        return true;
+    }
+
+    /**
+     * Numbers start with a digit, or a sign or decimal point followed by a
+     * digit. Anything else (including a bare "-" or ".") is a button.
+     */
+    private static boolean isNumber(String token) {
+        char c = token.charAt(0);
+        if (c >= '0' && c <= '9') {
+            return true;
+        }
+        if ((c == '-' || c == '+' || c == '.') && token.length() > 1) {
+            char d = token.charAt(1);
+            return (d >= '0' && d <= '9') || (d == '.' && c != '.' && token.length() > 2);
+        }
+        return false;
+    }
+
+    static void appendValue(StringBuilder result, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            result.append(ERROR);
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            result.append((long) value);
+        } else {
+            result.append(value);
+        }
+    }
+
+    private interface Range {
+
+        void run(int from, int to);
+    }
+
+    /**
+     * Halves a range until it's small enough to run in one go.
+     */
+    private static final class Split extends RecursiveAction {
+
+        private static final int THRESHOLD = 256;
+
+        private final int from;
+        private final int to;
+        private final Range range;
+
+        Split(int from, int to, Range range) {
+            this.from = from;
+            this.to = to;
+            this.range = range;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                range.run(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Split(from, middle, range), new Split(middle, to, range));
+            }
+        }
+    }
+
+    private final class Worker {
+
+        private final Engine engine = new Engine(library, false);
+        private final Batch batch = new Batch();
+
+        /**
+         * Run the batch on a clean engine.
+         *
+         * @return the value that ends up in the display
+         */
+        double run() {
+            engine.reset();
+            engine.executeBatch(batch);
+            if (engine.hasDisplayValue() || engine.getDepth() > 0) {
+                // The display's own value, so a bare "." is 0
+                return engine.peek();
+            } else {
+                return 0;
+            }
+        }
+
+        double runOrNaN() {
+            try {
+                return run();
+            } catch (RuntimeException ex) {
+                log.warn("Can't run batch: {}", ex.getMessage());
+                return Double.NaN;
+            }
+        }
+    }
+}
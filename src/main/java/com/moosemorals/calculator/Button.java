@@ -47,9 +47,11 @@ public class Button implements XMLable {
     private final String name;
     private final String label;
     private final String code;
+    private final String intrinsic;
+    private final RpnProgram rpn;
     private final char key;
 
-    private Button(int x, int y, int in, int out, int width, int height, String name, String label, String code, char key) {
+    private Button(int x, int y, int in, int out, int width, int height, String name, String label, String code, String intrinsic, RpnProgram rpn, char key) {
         this.x = x;
         this.y = y;
         this.in = in;
@@ -59,6 +61,8 @@ public class Button implements XMLable {
         this.name = name;
         this.label = label;
         this.code = code;
+        this.intrinsic = intrinsic;
+        this.rpn = rpn;
         this.key = key;
     }
 
@@ -137,6 +141,34 @@ public class Button implements XMLable {
         return code != null;
     }
 
+    /**
+     * Name of the built in implementation to use instead of a script.
+     *
+     * @return
+     * @see Intrinsics
+     */
+    public String getIntrinsic() {
+        return intrinsic;
+    }
+
+    public boolean hasIntrinsic() {
+        return intrinsic != null;
+    }
+
+    /**
+     * Stack language program to use instead of a script.
+     *
+     * @return
+     * @see RpnProgram
+     */
+    public RpnProgram getRpn() {
+        return rpn;
+    }
+
+    public boolean hasRpn() {
+        return rpn != null;
+    }
+
     /**
      * Keyboard key to operate the button. Zero means no keystroke.
      *
@@ -149,10 +181,10 @@ public class Button implements XMLable {
     @Override
     public void toXML(XML xml) throws XMLStreamException {
         xml.start("button",
-                "x", String.format("%d", x),
-                "y", String.format("%d", y),
-                "width", String.format("%d", width),
-                "height", String.format("%d", height)
+                "x", Integer.toString(x),
+                "y", Integer.toString(y),
+                "width", Integer.toString(width),
+                "height", Integer.toString(height)
         );
 
         xml.add("name", name);
@@ -160,9 +192,14 @@ public class Button implements XMLable {
         xml.add("in", in);
         xml.add("out", out);
         if (key > 0) {
-            xml.add("key", key);
+            // Same escapes as ButtonsParser reads
+            xml.add("key", key == '\n' ? "\\n" : key == '\t' ? "\\t" : String.valueOf(key));
         }
         
+        xml.add("intrinsic", intrinsic);
+        if (rpn != null) {
+            xml.add("rpn", rpn.getSource());
+        }
         xml.add("code", code);
 
         xml.end();
@@ -179,6 +216,8 @@ public class Button implements XMLable {
         private String name = "";
         private String label = "";
         private String code = null;
+        private String intrinsic = null;
+        private RpnProgram rpn = null;
         private char key = 0;
 
         public Builder() {
@@ -230,13 +269,27 @@ public class Button implements XMLable {
             return this;
         }
 
+        public Builder setIntrinsic(String intrinsic) {
+            this.intrinsic = intrinsic;
+            return this;
+        }
+
+        public Builder setRpn(RpnProgram rpn) {
+            this.rpn = rpn;
+            return this;
+        }
+
         public Builder setKey(char key) {
             this.key = key;
             return this;
         }
 
         public Button build() {
-            return new Button(x, y, in, out, width, height, name, label, code, key);
+            if (rpn != null) {
+                // The program knows what it needs, even if the config doesn't
+                return new Button(x, y, Math.max(in, rpn.getIn()), rpn.getOut(), width, height, name, label, code, intrinsic, rpn, key);
+            }
+            return new Button(x, y, in, out, width, height, name, label, code, intrinsic, rpn, key);
         }
     }
 
@@ -0,0 +1,384 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+import jdk.nashorn.api.scripting.JSObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The compiled form of a Config's buttons, shared by any number of
+ * Engines. Scripts are compiled once, to the function that the button code
+ * defines, and each Engine calls that function with its own Stack to get a
+ * command. Intrinsics and stack programs are looked up once too.
+ *
+ * Thread safe. Scripts are compiled once, on whichever thread first needs
+ * them (or on the background pool, see {@link #fillCache()}), each thread
+ * compiling with its own Nashorn engine. Nashorn globals aren't thread safe
+ * either, so each thread that runs a button gets its own copy of the
+ * button function, made by running the shared compiled script in that
+ * thread's own global. That's cheap, since nothing is compiled again.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class ButtonLibrary {
+
+    // What a button does, looked up by opcode
+    static final int OP_SCRIPT = 0;
+    static final int OP_DIGIT = 1;
+    static final int OP_DECIMAL_POINT = 2;
+    static final int OP_CLEAR = 3;
+    static final int OP_ENTER = 4;
+
+    // Keys for the buttons everyone presses first, compiled before the rest
+    private static final char[] PRIORITY_KEYS = {'\n', '+', '-', '*', '/'};
+
+    private static final int COMPILE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final Logger log = LoggerFactory.getLogger(ButtonLibrary.class);
+    private final Config config;
+    private final ThreadLocal<ScriptCompiler> scriptCompiler;
+    private final ConcurrentMap<Integer, FutureTask<CompiledScript>> scriptCache;
+    // Button functions for the calling thread, by opcode
+    private final ThreadLocal<JSObject[]> functions;
+    private final ThreadPoolExecutor compilePool;
+    private final int[] opTypes;
+    private final Intrinsics.Factory[] intrinsics;
+    // Set once a reloaded config takes over from this one
+    private volatile ButtonLibrary replacement;
+
+    public ButtonLibrary(Config config) {
+        this(config, null);
+    }
+
+    /**
+     * @param config button layout
+     * @param scriptCacheDir directory to keep compiled scripts in between
+     * runs, or null to compile them fresh every time
+     */
+    ButtonLibrary(Config config, Path scriptCacheDir) {
+        // Nashorn engines aren't thread safe, so each thread that compiles
+        // scripts gets its own
+        this(config, ThreadLocal.withInitial(() -> new ScriptCompiler(scriptCacheDir)), createCompilePool());
+    }
+
+    private ButtonLibrary(Config config, ThreadLocal<ScriptCompiler> scriptCompiler, ThreadPoolExecutor compilePool) {
+        this.config = config;
+        this.scriptCompiler = scriptCompiler;
+        this.compilePool = compilePool;
+        scriptCache = new ConcurrentHashMap<>();
+        functions = ThreadLocal.withInitial(() -> new JSObject[config.getButtonCount()]);
+        opTypes = buildOpTypes(config);
+        intrinsics = new Intrinsics.Factory[config.getButtonCount()];
+        for (int i = 0; i < intrinsics.length; i += 1) {
+            Button b = config.getButton(i);
+            if (b.hasIntrinsic()) {
+                intrinsics[i] = Intrinsics.get(b.getIntrinsic());
+            } else if (b.hasRpn()) {
+                intrinsics[i] = b.getRpn();
+            }
+        }
+    }
+
+    private static int[] buildOpTypes(Config config) {
+        int[] result = new int[config.getButtonCount()];
+        for (int i = 0; i < result.length; i += 1) {
+            switch (config.getButton(i).getName()) {
+                case "Decimal point":
+                    result[i] = OP_DECIMAL_POINT;
+                    break;
+                case "Number 0":
+                case "Number 1":
+                case "Number 2":
+                case "Number 3":
+                case "Number 4":
+                case "Number 5":
+                case "Number 6":
+                case "Number 7":
+                case "Number 8":
+                case "Number 9":
+                    result[i] = OP_DIGIT;
+                    break;
+                case "Clear":
+                    result[i] = OP_CLEAR;
+                    break;
+                case "Enter":
+                    result[i] = OP_ENTER;
+                    break;
+                default:
+                    result[i] = OP_SCRIPT;
+                    break;
+            }
+        }
+        return result;
+    }
+
+    private static ThreadPoolExecutor createCompilePool() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(COMPILE_THREADS, COMPILE_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (Runnable r) -> {
+                    Thread t = new Thread(r, "script-compiler-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Build a library for a changed config. Scripts whose code hasn't
+     * changed carry over already compiled, and the rest are compiled in the
+     * background before the new library is handed over, so nothing using
+     * it has to wait. This library is untouched until
+     * {@link #replaceWith(ButtonLibrary)}.
+     *
+     * @param next the changed config
+     * @return completes with the new library once its scripts are compiled
+     */
+    public CompletableFuture<ButtonLibrary> reload(Config next) {
+        ButtonLibrary result = new ButtonLibrary(next, scriptCompiler, compilePool);
+
+        // Keyed by code rather than opcode, since buttons that move about
+        // or get renamed still don't need compiling again
+        Map<String, FutureTask<CompiledScript>> compiled = new HashMap<>();
+        for (Map.Entry<Integer, FutureTask<CompiledScript>> e : scriptCache.entrySet()) {
+            compiled.put(config.getButton(e.getKey()).getCode(), e.getValue());
+        }
+
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < next.getButtonCount(); i += 1) {
+            if (!result.needsCompile(i)) {
+                continue;
+            }
+            FutureTask<CompiledScript> task = compiled.get(next.getButton(i).getCode());
+            if (task != null) {
+                result.scriptCache.put(i, task);
+            } else {
+                changed.add(i);
+                compilePool.execute(result.getCompileTask(i));
+            }
+        }
+        log.info("Reloading config: {} buttons, {} scripts to compile", next.getButtonCount(), changed.size());
+
+        CompletableFuture<ButtonLibrary> ready = new CompletableFuture<>();
+        compilePool.execute(() -> {
+            for (int opcode : changed) {
+                try {
+                    result.getCompiled(opcode);
+                } catch (ScriptException | RuntimeException ex) {
+                    // Already logged, and the button will push NaN
+                }
+            }
+            ready.complete(result);
+        });
+        return ready;
+    }
+
+    /**
+     * Hand over to a reloaded library. Engines using this one switch to it
+     * before their next command, on their own threads.
+     *
+     * @param next from {@link #reload(Config)}
+     */
+    public void replaceWith(ButtonLibrary next) {
+        replacement = next;
+    }
+
+    /**
+     * @return the library that has replaced this one, following any chain
+     * of reloads, or this library if it hasn't been replaced
+     */
+    public ButtonLibrary getLatest() {
+        ButtonLibrary latest = this;
+        while (latest.replacement != null) {
+            latest = latest.replacement;
+        }
+        return latest;
+    }
+
+    int getOpType(int opcode) {
+        return opTypes[opcode];
+    }
+
+    /**
+     * @param opcode
+     * @return the intrinsic or stack program for a button, or null if it
+     * doesn't have one
+     */
+    Intrinsics.Factory getIntrinsic(int opcode) {
+        return intrinsics[opcode];
+    }
+
+    /**
+     * Start compiling every button script in the background, most used
+     * first. The given opcodes come first, then Enter and the four
+     * arithmetic operators, then everything else in grid order. Digits
+     * never need compiling. Buttons that are pressed before their turn
+     * compile straight away on the thread that needs them, see
+     * {@link #getScript(int)}.
+     *
+     * @param first opcodes to compile before anything else
+     * @return completes when the given opcodes and the operators are
+     * compiled (whether or not they compiled cleanly)
+     */
+    public CompletableFuture<Void> fillCache(int... first) {
+        Set<Integer> urgent = new LinkedHashSet<>();
+        for (int opcode : first) {
+            urgent.add(opcode);
+        }
+        for (char key : PRIORITY_KEYS) {
+            int opcode = config.getOpcodeForKey(key);
+            if (opcode != Config.NO_OPCODE) {
+                urgent.add(opcode);
+            }
+        }
+        urgent.removeIf(opcode -> !needsCompile(opcode));
+
+        log.debug("Script cache load: queueing {} urgent scripts on {} threads", urgent.size(), COMPILE_THREADS);
+        for (int opcode : urgent) {
+            compilePool.execute(getCompileTask(opcode));
+        }
+
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        compilePool.execute(() -> {
+            for (int opcode : urgent) {
+                try {
+                    // Helps out if the task hasn't started yet
+                    getCompiled(opcode);
+                } catch (ScriptException | RuntimeException ex) {
+                    // Already logged
+                }
+            }
+            ready.complete(null);
+        });
+
+        for (int i = 0; i < config.getButtonCount(); i += 1) {
+            if (needsCompile(i) && !urgent.contains(i)) {
+                compilePool.execute(getCompileTask(i));
+            }
+        }
+        return ready;
+    }
+
+    private boolean needsCompile(int opcode) {
+        if (opcode < 0 || opcode >= opTypes.length) {
+            return false;
+        }
+        // Enter runs its script when there's nothing to enter, the others
+        // are handled by the engine
+        return config.getButton(opcode).hasCode() && intrinsics[opcode] == null
+                && (opTypes[opcode] == OP_SCRIPT || opTypes[opcode] == OP_ENTER);
+    }
+
+    private FutureTask<CompiledScript> getCompileTask(int opcode) {
+        return scriptCache.computeIfAbsent(opcode, (Integer op) -> new FutureTask<>(() -> {
+            Button b = config.getButton(op);
+            try {
+                return scriptCompiler.get().compile(b.getCode());
+            } catch (ScriptException ex) {
+                log.error("Button [{}]: Code error", b.getName(), ex);
+                throw ex;
+            }
+        }));
+    }
+
+    /**
+     * @param opcode
+     * @return true if the button's script has finished compiling (or
+     * failing to), without waiting or compiling it
+     */
+    boolean isCompiled(int opcode) {
+        FutureTask<CompiledScript> task = scriptCache.get(opcode);
+        return task != null && task.isDone();
+    }
+
+    /**
+     * Get the calling thread's copy of the function for a button. Don't
+     * hand it to other threads.
+     *
+     * @param opcode
+     * @return function that takes a Stack and returns the button's command
+     * @throws ScriptException
+     * @see #getCompiled(int)
+     */
+    JSObject getScript(int opcode) throws ScriptException {
+        JSObject[] mine = functions.get();
+        JSObject function = mine[opcode];
+        if (function == null) {
+            function = ScriptCompiler.bind(getCompiled(opcode));
+            mine[opcode] = function;
+        }
+        return function;
+    }
+
+    /**
+     * Get the compiled script for a button. If the script is still waiting
+     * in the compile queue then it gets compiled on the calling thread, and
+     * if another thread is already compiling it then this waits for that
+     * compile to finish. Either way, callers only wait for their own
+     * button.
+     *
+     * @param opcode
+     * @return the compiled script, shared by all threads
+     * @throws ScriptException
+     */
+    CompiledScript getCompiled(int opcode) throws ScriptException {
+        FutureTask<CompiledScript> task = getCompileTask(opcode);
+        // No-op if the task has already been started
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ScriptException("Interrupted waiting for script to compile");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ScriptException) {
+                throw (ScriptException) ex.getCause();
+            }
+            throw new RuntimeException("Can't compile script: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+}
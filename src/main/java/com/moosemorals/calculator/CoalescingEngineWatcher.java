@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Collects changes and passes them on in one go. The first change after a
+ * delivery schedules the next delivery on the executor, and anything that
+ * happens before it runs is merged in. With SwingUtilities::invokeLater as
+ * the executor the watcher hears about each burst of changes once per trip
+ * round the event queue, no matter how many commands ran.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class CoalescingEngineWatcher implements EngineWatcher {
+
+    private final EngineWatcher target;
+    private final Executor executor;
+    private final Object lock = new Object();
+    private EngineChange pending;
+
+    public CoalescingEngineWatcher(EngineWatcher target, Executor executor) {
+        this.target = target;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onEngineChanged() {
+        // Only called by code that doesn't know about EngineChange
+        target.onEngineChanged();
+    }
+
+    @Override
+    public void onEngineChanged(EngineChange change) {
+        boolean schedule;
+        synchronized (lock) {
+            schedule = pending == null;
+            pending = schedule ? change : pending.merge(change);
+        }
+        if (schedule) {
+            executor.execute(this::deliver);
+        }
+    }
+
+    private void deliver() {
+        EngineChange change;
+        synchronized (lock) {
+            change = pending;
+            pending = null;
+        }
+        if (change != null && !change.isEmpty()) {
+            target.onEngineChanged(change);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * Element-wise maths on columns. The arithmetic operators each get their
+ * own plain counted loop over primitive arrays, which is the shape the JIT
+ * turns into SIMD instructions. Everything else goes through a general
+ * loop that calls the scalar operator for each value.
+ *
+ * Results are always new arrays, since columns on the stack are never
+ * changed.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+final class Columns {
+
+    /**
+     * Element-wise version of a binary operator. Either side can be a
+     * scalar, which is applied to every value of the other side. Arguments
+     * are in stack order, so for "a b -" it's called with (a, b). Columns
+     * passed together are the same length.
+     */
+    interface BinaryKernel {
+
+        double[] apply(double[] a, double[] b);
+
+        double[] apply(double[] a, double b);
+
+        double[] apply(double a, double[] b);
+    }
+
+    static final BinaryKernel ADD = new BinaryKernel() {
+        @Override
+        public double[] apply(double[] a, double[] b) {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a[i] + b[i];
+            }
+            return result;
+        }
+
+        @Override
+        public double[] apply(double[] a, double b) {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a[i] + b;
+            }
+            return result;
+        }
+
+        @Override
+        public double[] apply(double a, double[] b) {
+            return apply(b, a);
+        }
+    };
+
+    static final BinaryKernel SUBTRACT = new BinaryKernel() {
+        @Override
+        public double[] apply(double[] a, double[] b) {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a[i] - b[i];
+            }
+            return result;
+        }
+
+        @Override
+        public double[] apply(double[] a, double b) {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a[i] - b;
+            }
+            return result;
+        }
+
+        @Override
+        public double[] apply(double a, double[] b) {
+            double[] result = new double[b.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a - b[i];
+            }
+            return result;
+        }
+    };
+
+    static final BinaryKernel MULTIPLY = new BinaryKernel() {
+        @Override
+        public double[] apply(double[] a, double[] b) {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a[i] * b[i];
+            }
+            return result;
+        }
+
+        @Override
+        public double[] apply(double[] a, double b) {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a[i] * b;
+            }
+            return result;
+        }
+
+        @Override
+        public double[] apply(double a, double[] b) {
+            return apply(b, a);
+        }
+    };
+
+    static final BinaryKernel DIVIDE = new BinaryKernel() {
+        @Override
+        public double[] apply(double[] a, double[] b) {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a[i] / b[i];
+            }
+            return result;
+        }
+
+        @Override
+        public double[] apply(double[] a, double b) {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a[i] / b;
+            }
+            return result;
+        }
+
+        @Override
+        public double[] apply(double a, double[] b) {
+            double[] result = new double[b.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = a / b[i];
+            }
+            return result;
+        }
+    };
+
+    static final UnaryOperator<double[]> SQRT = a -> {
+        double[] result = new double[a.length];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = Math.sqrt(a[i]);
+        }
+        return result;
+    };
+
+    static final UnaryOperator<double[]> NEGATE = a -> {
+        double[] result = new double[a.length];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = -a[i];
+        }
+        return result;
+    };
+
+    private Columns() {
+        // Static only
+    }
+
+    /**
+     * @param op
+     * @return kernel applying op to each value in turn
+     */
+    static BinaryKernel of(DoubleBinaryOperator op) {
+        return new BinaryKernel() {
+            @Override
+            public double[] apply(double[] a, double[] b) {
+                double[] result = new double[a.length];
+                for (int i = 0; i < result.length; i += 1) {
+                    result[i] = op.applyAsDouble(a[i], b[i]);
+                }
+                return result;
+            }
+
+            @Override
+            public double[] apply(double[] a, double b) {
+                double[] result = new double[a.length];
+                for (int i = 0; i < result.length; i += 1) {
+                    result[i] = op.applyAsDouble(a[i], b);
+                }
+                return result;
+            }
+
+            @Override
+            public double[] apply(double a, double[] b) {
+                double[] result = new double[b.length];
+                for (int i = 0; i < result.length; i += 1) {
+                    result[i] = op.applyAsDouble(a, b[i]);
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @param op
+     * @return kernel applying op to each value in turn
+     */
+    static UnaryOperator<double[]> of(DoubleUnaryOperator op) {
+        return a -> {
+            double[] result = new double[a.length];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = op.applyAsDouble(a[i]);
+            }
+            return result;
+        };
+    }
+}
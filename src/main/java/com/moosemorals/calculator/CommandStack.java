@@ -26,50 +26,423 @@ package com.moosemorals.calculator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
 
 /**
+ * Undo history.
+ *
+ * The most recent commands are kept in a fixed size ring. When the ring is
+ * full the oldest command is pushed out to the spill (if there is one), and
+ * brought back if undo reaches it. Bringing a command back into a full ring
+ * drops the command furthest ahead in the redo list.
+ *
+ * Positions in the history are counted from the first command, including
+ * any that have been spilled. If there's a checkpointer, then the state is
+ * saved every few commands so {@link #jumpTo(long)} can restore the nearest
+ * checkpoint and redo forward from there, instead of undoing every step.
+ * Big checkpoints are spaced further apart, so that saving them costs about
+ * the same per command however big the state gets.
+ *
+ * The whole history can be read out oldest first, and put back with
+ * {@link #reset(long)} and {@link #append(Command, boolean)}, which don't
+ * run anything.
  *
  * @author Osric Wilkinson <osric@fluffypeople.com>
  */
- class CommandStack {
+class CommandStack {
+
+    /**
+     * Saved state that can be put back.
+     */
+    interface Checkpoint {
+
+        void restore();
+
+        /**
+         * @return roughly how many values were copied to make this
+         * checkpoint
+         */
+        default int getSize() {
+            return 0;
+        }
+    }
+
+    static final int DEFAULT_DEPTH = 1000;
+    static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+    // Values a checkpoint may copy for each command since the last one
+    static final int CHECKPOINT_VALUES_PER_COMMAND = 16;
 
     private final Logger log = LoggerFactory.getLogger(CommandStack.class);
-    private final List<Command> stack;
+    private final Command[] ring;
+    private final SegmentSpill spill;
+    private final Supplier<Checkpoint> checkpointer;
+    private final int checkpointInterval;
+    // State before the command at each position, for positions in memory
+    private final TreeMap<Long, Checkpoint> checkpoints;
+    // Position of the oldest command in memory (that is, the spill size)
+    private long base = 0;
+    // Ring index of the oldest command in memory
+    private int start = 0;
+    // Number of commands in memory
+    private int size = 0;
+    // Number of commands in memory that have been executed (and not undone)
     private int current = 0;
+    // Position and size of the newest checkpoint, even if it's been dropped
+    private long lastCheckpoint;
+    private int lastCheckpointSize = 0;
+
+    CommandStack() {
+        this(DEFAULT_DEPTH, null);
+    }
+
+    CommandStack(int depth, SegmentSpill spill) {
+        this(depth, spill, null, DEFAULT_CHECKPOINT_INTERVAL);
+    }
 
-     CommandStack() {
-        stack = new LinkedList<>();
+    /**
+     * @param depth how many commands to keep in memory
+     * @param spill where to put commands that don't fit in memory, or null
+     * to forget them
+     * @param checkpointer saves the current state, or null for no
+     * checkpoints
+     * @param checkpointInterval how many commands between checkpoints
+     */
+    CommandStack(int depth, SegmentSpill spill, Supplier<Checkpoint> checkpointer, int checkpointInterval) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("History depth must be at least one");
+        }
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least one");
+        }
+        ring = new Command[depth];
+        this.spill = spill;
+        this.checkpointer = checkpointer;
+        this.checkpointInterval = checkpointInterval;
+        checkpoints = new TreeMap<>();
+        lastCheckpoint = -checkpointInterval;
     }
 
-     void addCommand(Command x) {
+    void addCommand(Command x) {
+        long position = getPosition();
+        if (checkpointer != null && checkpointDue(position)) {
+            Checkpoint checkpoint = checkpointer.get();
+            checkpoints.put(position, checkpoint);
+            lastCheckpoint = position;
+            lastCheckpointSize = checkpoint.getSize();
+        }
         x.execute();
-        while (stack.size() > current) {
-            stack.remove(stack.size() - 1);
+        while (size > current) {
+            size -= 1;
+            ring[index(size)] = null;
+        }
+        // Checkpoints for the redo list we just threw away
+        checkpoints.tailMap(position, false).clear();
+        if (size == ring.length) {
+            spillOldest();
+        }
+        ring[index(size)] = x;
+        size += 1;
+        current += 1;
+    }
+
+    /**
+     * Add a command to the end of the history without running it, for
+     * putting back history that was saved.
+     *
+     * @param x
+     * @param done true if the command is in effect, false if it's waiting
+     * to be redone
+     * @return false if the command was dropped, because it was waiting to
+     * be redone and the ring was already full of others like it
+     * @throws IllegalStateException if a command that's in effect comes
+     * after one that isn't
+     */
+    boolean append(Command x, boolean done) {
+        if (done && current < size) {
+            throw new IllegalStateException("Can't append a done command after undone ones");
         }
-        stack.add(current++, x);
+        if (size == ring.length) {
+            if (current == 0) {
+                // Nothing left in effect to make room by spilling
+                return false;
+            }
+            spillOldest();
+        }
+        ring[index(size)] = x;
+        size += 1;
+        if (done) {
+            current += 1;
+        }
+        return true;
+    }
+
+    private boolean checkpointDue(long position) {
+        if (position < lastCheckpoint) {
+            // Gone back before it, and it's about to be thrown away with
+            // the redo list, so count from the one before (if there is one)
+            Map.Entry<Long, Checkpoint> earlier = checkpoints.floorEntry(position);
+            if (earlier != null && earlier.getKey() == position) {
+                return false;
+            }
+            lastCheckpoint = earlier != null ? earlier.getKey() : position;
+            lastCheckpointSize = earlier != null ? earlier.getValue().getSize() : lastCheckpointSize;
+        }
+        long spacing = Math.max(checkpointInterval, lastCheckpointSize / CHECKPOINT_VALUES_PER_COMMAND);
+        return position - lastCheckpoint >= spacing;
     }
 
-     void undo() {
-        if (current >= 0) {
-            stack.get(--current).undo();
+    void undo() {
+        if (current == 0 && !unspill()) {
+            return;
         }
+        current -= 1;
+        ring[index(current)].undo();
     }
 
     void redo() {
-         if (current < stack.size()) {
-             stack.get(current++).execute();
-         }
+        if (current < size) {
+            ring[index(current)].execute();
+            current += 1;
+        }
+    }
+
+    /**
+     * @return the command that undo would undo, or null if it isn't in
+     * memory
+     */
+    Command peekUndo() {
+        return current > 0 ? ring[index(current - 1)] : null;
+    }
+
+    /**
+     * @return the command that redo would run, or null if there isn't one
+     */
+    Command peekRedo() {
+        return current < size ? ring[index(current)] : null;
+    }
+
+    /**
+     * Put a command in front of the oldest one without running it, as if it
+     * had been unspilled, for rebuilding history that was journalled one
+     * step at a time. Commands waiting to be redone that no longer fit are
+     * dropped.
+     *
+     * @param x
+     * @throws IllegalStateException if any of the history is in effect
+     */
+    void prepend(Command x) {
+        if (getPosition() != getOldest()) {
+            throw new IllegalStateException("Can't prepend to history that's in effect");
+        }
+        insertOldest(x);
+    }
+
+    /**
+     * Move to a position in the history, as if by calling undo or redo
+     * enough times.
+     *
+     * @param target number of commands from the start of history that
+     * should be in effect afterwards
+     * @throws IllegalArgumentException if target is outside the history
+     */
+    void jumpTo(long target) {
+        if (target < getOldest() || target > getSize()) {
+            throw new IllegalArgumentException("Can't jump to " + target + ", history has " + getSize() + " commands");
+        }
+
+        long position = getPosition();
+        Map.Entry<Long, Checkpoint> checkpoint = checkpoints.floorEntry(target);
+        if (checkpoint != null && checkpoint.getKey() >= base
+                && target - checkpoint.getKey() < Math.abs(target - position)) {
+            checkpoint.getValue().restore();
+            current = (int) (checkpoint.getKey() - base);
+            position = checkpoint.getKey();
+        }
+
+        while (position < target) {
+            redo();
+            position += 1;
+        }
+        while (position > target) {
+            undo();
+            position -= 1;
+        }
+    }
+
+    /**
+     * @return earliest position that can still be reached, which is more
+     * than zero if old commands have been forgotten
+     */
+    long getOldest() {
+        return spill != null ? base - spill.size() : base;
+    }
+
+    /**
+     * @return number of commands from the start of history currently in
+     * effect
+     */
+    long getPosition() {
+        return base + current;
+    }
+
+    /**
+     * @return number of commands in history, including any that are undone
+     * and waiting to be redone
+     */
+    long getSize() {
+        return base + size;
+    }
+
+    /**
+     * Throw everything away, and start again with an empty history whose
+     * first command will be at a given position.
+     *
+     * @param oldest
+     */
+    void reset(long oldest) {
+        clear();
+        base = oldest;
+        lastCheckpoint = oldest - checkpointInterval;
+    }
+
+    /**
+     * Start reading the history, spilled commands included, from the oldest
+     * command. The history mustn't change until the reader is closed.
+     *
+     * @return the reader
+     */
+    Reader read() {
+        return new Reader();
     }
 
     void clear() {
-         stack.clear();
+        for (int i = 0; i < size; i += 1) {
+            ring[index(i)] = null;
+        }
+        start = 0;
+        size = 0;
+        current = 0;
+        base = 0;
+        checkpoints.clear();
+        lastCheckpoint = -checkpointInterval;
+        lastCheckpointSize = 0;
+        if (spill != null) {
+            spill.clear();
+        }
+    }
+
+    int getDepth() {
+        return ring.length;
     }
 
     protected List<Command> dump() {
-         return Collections.unmodifiableList(stack);
+        List<Command> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i += 1) {
+            result.add(ring[index(i)]);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private int index(int offset) {
+        return (start + offset) % ring.length;
+    }
+
+    private void spillOldest() {
+        Command oldest = ring[start];
+        ring[start] = null;
+        start = index(1);
+        size -= 1;
+        current -= 1;
+        base += 1;
+        checkpoints.headMap(base).clear();
+        spill(oldest);
+    }
+
+    private void spill(Command oldest) {
+        if (spill == null) {
+            return;
+        }
+        try {
+            spill.push(oldest);
+        } catch (IOException | IllegalArgumentException ex) {
+            // Anything older than this command can't be reached any more
+            log.warn("Can't spill history, dropping older commands: {}", ex.getMessage());
+            spill.clear();
+        }
+    }
+
+    /**
+     * Move the newest spilled command to the start of the ring.
+     *
+     * @return true if there was a command to move
+     */
+    private boolean unspill() {
+        if (spill == null || spill.isEmpty()) {
+            return false;
+        }
+        Command c;
+        try {
+            c = spill.pop();
+        } catch (IOException ex) {
+            log.warn("Can't read spilled history: {}", ex.getMessage());
+            spill.clear();
+            return false;
+        }
+        insertOldest(c);
+        return true;
+    }
+
+    private void insertOldest(Command c) {
+        if (size == ring.length) {
+            size -= 1;
+            ring[index(size)] = null;
+            checkpoints.tailMap(base + size, false).clear();
+        }
+        base -= 1;
+        start = (start + ring.length - 1) % ring.length;
+        ring[start] = c;
+        size += 1;
+        current += 1;
+    }
+
+    /**
+     * Reads the spill, if there is one, and then the ring.
+     */
+    final class Reader implements Closeable {
+
+        private final SegmentSpill.Reader spilled;
+        private int next = 0;
+
+        private Reader() {
+            spilled = spill != null ? spill.read() : null;
+        }
+
+        /**
+         * @return the next command, or null once they've all been read
+         * @throws IOException if spilled history can't be read
+         */
+        Command next() throws IOException {
+            if (spilled != null) {
+                Command c = spilled.next();
+                if (c != null) {
+                    return c;
+                }
+            }
+            return next < size ? ring[index(next++)] : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spilled != null) {
+                spilled.close();
+            }
+        }
     }
 }
@@ -24,8 +24,11 @@
 package com.moosemorals.calculator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.xml.stream.XMLStreamException;
 
 import com.moosemorals.calculator.xml.XML;
@@ -34,22 +37,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Button layout. Each button is identified by a dense integer opcode, which
+ * is its index in the (sorted) button list.
  *
  * @author Osric Wilkinson <osric@fluffypeople.com>
  */
 public class Config implements XMLable {
 
+    public static final int NO_OPCODE = -1;
+
     private final Logger log = LoggerFactory.getLogger(Config.class);
     private final List<Button> buttons;
+    private final Map<String, Integer> opcodes;
+    private final int[] keys;
     private final int cols;
     private final int rows;
     private final int size;
+    private final int historyDepth;
+    private final int precision;
 
-    private Config(int cols, int rows, int size, List<Button> buttons) {
+    private Config(int cols, int rows, int size, int historyDepth, int precision, List<Button> buttons, Map<String, Integer> opcodes, int[] keys) {
         this.cols = cols;
         this.rows = rows;
         this.size = size;
+        this.historyDepth = historyDepth;
+        this.precision = precision;
         this.buttons = buttons;
+        this.opcodes = opcodes;
+        this.keys = keys;
     }
 
     public int getCols() {
@@ -64,6 +79,26 @@ public class Config implements XMLable {
         return size;
     }
 
+    /**
+     * How many commands the undo history keeps in memory. Older commands are
+     * moved to disk.
+     *
+     * @return
+     */
+    public int getHistoryDepth() {
+        return historyDepth;
+    }
+
+    /**
+     * Significant digits kept in precision mode, where values a double
+     * can't hold exactly become BigDecimals.
+     *
+     * @return digits, or 0 if precision mode is off
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
     public int getButtonCount() {
         return buttons.size();
     }
@@ -72,11 +107,37 @@ public class Config implements XMLable {
         return buttons.get(index);
     }
 
+    /**
+     * Opcode of the button with the given name.
+     *
+     * @param name
+     * @return opcode, or NO_OPCODE if there isn't a button with that name
+     */
+    public int getOpcode(String name) {
+        Integer opcode = opcodes.get(name);
+        return opcode != null ? opcode : NO_OPCODE;
+    }
+
+    /**
+     * Opcode of the button operated by the given key. If more than one
+     * button uses the same key, the first in the layout wins.
+     *
+     * @param key
+     * @return opcode, or NO_OPCODE if no button uses that key
+     */
+    public int getOpcodeForKey(char key) {
+        return key < keys.length ? keys[key] : NO_OPCODE;
+    }
+
     @Override
     public void toXML(XML xml) throws XMLStreamException {
         xml.start("calculator");
         xml.start("config");
         xml.add("size", size);
+        xml.add("history", historyDepth);
+        if (precision > 0) {
+            xml.add("precision", precision);
+        }
         xml.end();
         xml.start("buttons");
 
@@ -91,6 +152,8 @@ public class Config implements XMLable {
         private int cols = 0;
         private int rows = 0;
         private int size = 48;
+        private int historyDepth = CommandStack.DEFAULT_DEPTH;
+        private int precision = 0;
         private final List<Button> buttons = new ArrayList<>();
 
         public Builder setSize(int size) {
@@ -98,6 +161,16 @@ public class Config implements XMLable {
             return this;
         }
 
+        public Builder setHistoryDepth(int historyDepth) {
+            this.historyDepth = historyDepth;
+            return this;
+        }
+
+        public Builder setPrecision(int precision) {
+            this.precision = precision;
+            return this;
+        }
+
         public Builder addButtons(List<Button> buttons) {
             this.buttons.addAll(buttons);
             return this;
@@ -127,7 +200,26 @@ public class Config implements XMLable {
                 }
             });
 
-            return new Config(cols, rows, size, buttons);
+            Map<String, Integer> opcodes = new HashMap<>();
+            char maxKey = 0;
+            for (Button b : buttons) {
+                if (b.getKey() > maxKey) {
+                    maxKey = b.getKey();
+                }
+            }
+
+            int[] keys = new int[maxKey + 1];
+            Arrays.fill(keys, NO_OPCODE);
+            // Key zero means "no key", so it never maps to a button
+            for (int i = 0; i < buttons.size(); i += 1) {
+                Button b = buttons.get(i);
+                opcodes.putIfAbsent(b.getName(), i);
+                if (b.getKey() != 0 && keys[b.getKey()] == NO_OPCODE) {
+                    keys[b.getKey()] = i;
+                }
+            }
+
+            return new Config(cols, rows, size, historyDepth, precision, Collections.unmodifiableList(new ArrayList<>(buttons)), opcodes, keys);
         }
 
     }
@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import javax.xml.stream.XMLStreamException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A parsed Config, saved in a compact binary form so that it can be loaded
+ * without going through StAX and the parsers.
+ *
+ * The snapshot starts with a checksum of the XML it was made from. Loading
+ * checks that against the XML it's given, and if they don't match (or
+ * there's no snapshot yet) parses the XML the slow way and writes a new
+ * snapshot for next time. Snapshots are read through a MappedByteBuffer.
+ *
+ * Compiled scripts aren't part of the snapshot, since Nashorn already keeps
+ * them in the script cache directory.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class ConfigSnapshot {
+
+    private static final int MAGIC = 0x43414c43;
+    private static final int VERSION = 1;
+
+    private static final Logger log = LoggerFactory.getLogger(ConfigSnapshot.class);
+
+    private ConfigSnapshot() {
+        // Static methods only
+    }
+
+    public static Path getDefaultFile() {
+        return Paths.get(System.getProperty("user.home"), ".calculator", "config.snapshot");
+    }
+
+    /**
+     * Load a config from its snapshot, or from XML if the snapshot is
+     * missing or out of date.
+     *
+     * @param xml config XML, which is read (but only parsed if needed)
+     * @param snapshotFile where the snapshot lives
+     * @return the config
+     * @throws IOException if the XML can't be read
+     * @throws XMLStreamException if the XML needs parsing and is broken
+     */
+    public static Config load(InputStream xml, Path snapshotFile) throws IOException, XMLStreamException {
+        byte[] raw = readFully(xml);
+        long checksum = checksum(raw);
+
+        Config config = read(snapshotFile, checksum);
+        if (config != null) {
+            return config;
+        }
+
+        config = new ConfigFileParser().parse(new ByteArrayInputStream(raw));
+        try {
+            write(config, checksum, snapshotFile);
+        } catch (IOException ex) {
+            // Just means parsing again next time
+            log.warn("Can't write config snapshot {}: {}", snapshotFile, ex.getMessage());
+        }
+        return config;
+    }
+
+    /**
+     * @param snapshotFile
+     * @param checksum of the XML the snapshot should have been made from
+     * @return the config, or null if there isn't a usable snapshot
+     */
+    static Config read(Path snapshotFile, long checksum) {
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                log.info("Config snapshot {} has the wrong format, ignoring it", snapshotFile);
+                return null;
+            } else if (map.getLong() != checksum) {
+                log.info("Config snapshot {} is stale", snapshotFile);
+                return null;
+            }
+
+            Config.Builder builder = new Config.Builder()
+                    .setSize(map.getInt())
+                    .setHistoryDepth(map.getInt())
+                    .setPrecision(map.getInt());
+
+            int count = map.getInt();
+            List<Button> buttons = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                Button.Builder b = new Button.Builder()
+                        .setX(map.getInt())
+                        .setY(map.getInt())
+                        .setIn(map.getInt())
+                        .setOut(map.getInt())
+                        .setWidth(map.getInt())
+                        .setHeight(map.getInt())
+                        .setKey(map.getChar())
+                        .setName(getString(map))
+                        .setLabel(getString(map))
+                        .setCode(getString(map))
+                        .setIntrinsic(getString(map));
+                String rpn = getString(map);
+                if (rpn != null) {
+                    b.setRpn(RpnProgram.compile(rpn));
+                }
+                buttons.add(b.build());
+            }
+            return builder.addButtons(buttons).build();
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException ex) {
+            log.warn("Can't read config snapshot {}, ignoring it: {}", snapshotFile, ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Save a config, replacing any existing snapshot in one go.
+     *
+     * @param config
+     * @param checksum of the XML the config came from
+     * @param snapshotFile
+     * @throws IOException
+     */
+    static void write(Config config, long checksum, Path snapshotFile) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(checksum);
+        writeConfig(config, out);
+        out.flush();
+
+        Path parent = snapshotFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, "config", ".tmp");
+        try {
+            Files.write(temp, buffer.toByteArray());
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static long checksum(byte[] raw) {
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, raw.length);
+        // Length too, so a collision has to be the same size
+        return ((long) raw.length << 32) | crc.getValue();
+    }
+
+    /**
+     * Checksum of a config itself, rather than the XML it came from, for
+     * things that need to notice when the buttons have changed.
+     *
+     * @param config
+     * @return the checksum
+     */
+    static long checksum(Config config) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            writeConfig(config, out);
+        } catch (IOException ex) {
+            // Can't happen, it's all in memory
+            throw new IllegalStateException(ex);
+        }
+        return checksum(buffer.toByteArray());
+    }
+
+    private static void writeConfig(Config config, DataOutputStream out) throws IOException {
+        out.writeInt(config.getSize());
+        out.writeInt(config.getHistoryDepth());
+        out.writeInt(config.getPrecision());
+        out.writeInt(config.getButtonCount());
+        for (int i = 0; i < config.getButtonCount(); i += 1) {
+            Button b = config.getButton(i);
+            out.writeInt(b.getX());
+            out.writeInt(b.getY());
+            out.writeInt(b.getIn());
+            out.writeInt(b.getOut());
+            out.writeInt(b.getWidth());
+            out.writeInt(b.getHeight());
+            out.writeChar(b.getKey());
+            putString(out, b.getName());
+            putString(out, b.getLabel());
+            putString(out, b.getCode());
+            putString(out, b.getIntrinsic());
+            putString(out, b.hasRpn() ? b.getRpn().getSource() : null);
+        }
+    }
+
+    // Null is written as a length of -1
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        } else if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            result.write(chunk, 0, read);
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.xml.stream.XMLStreamException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a config file, and parses it again whenever it changes.
+ *
+ * Editors tend to save in several steps, so changes are left to settle for
+ * a moment before the file is read. A file that doesn't parse is logged
+ * and otherwise ignored, leaving the old config in place until the next
+ * save.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class ConfigWatcher implements Closeable {
+
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Logger log = LoggerFactory.getLogger(ConfigWatcher.class);
+    private final Path file;
+    private final Consumer<Config> listener;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    /**
+     * Start watching.
+     *
+     * @param file config file
+     * @param listener called with each new config, on the watching thread
+     * @throws IOException if the file's directory can't be watched
+     */
+    public ConfigWatcher(Path file, Consumer<Config> listener) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.listener = listener;
+        watcher = FileSystems.getDefault().newWatchService();
+        // Watch the directory, since saving often replaces the file
+        this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this::watchLoop, "Config watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = isChange(key);
+                // Let the save finish, and fold any more events into this one
+                WatchKey more;
+                while ((more = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= isChange(more);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Closed
+        }
+    }
+
+    private boolean isChange(WatchKey key) {
+        boolean result = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path && file.getFileName().equals(event.context())) {
+                result = true;
+            }
+        }
+        key.reset();
+        return result;
+    }
+
+    private void reload() {
+        Config config;
+        try (InputStream in = Files.newInputStream(file)) {
+            config = new ConfigFileParser().parse(in);
+        } catch (IOException | XMLStreamException | RuntimeException ex) {
+            log.warn("Can't reload {}, keeping the old config: {}", file, ex.getMessage());
+            return;
+        }
+        log.info("Config {} changed", file);
+        listener.accept(config);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.util.Arrays;
+
+/**
+ * Wraps a command that works on the stack, and remembers what it did.
+ *
+ * The first time it runs, the wrapped command is executed and every value it
+ * takes off or puts on the stack is recorded into small primitive arrays
+ * (sized for the usual two values off, one value on). After that the wrapped
+ * command is dropped, and undo and redo just replay the recorded values. The
+ * wrapped command's own undo is never used, so it can be shared. That makes
+ * undo correct even for commands that keep their state in shared closures,
+ * and gives the history something simple to write to disk.
+ *
+ * Columns and exact values are recorded in arrays alongside, which are only
+ * created if one actually comes off or goes on.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+final class DeltaCommand implements Command, Stack.Recorder {
+
+    private static final double[] EMPTY = new double[0];
+
+    private final Stack stack;
+    private Command op;
+    private double[] popped;
+    private Object[] poppedExtras;
+    private int popCount;
+    private double[] pushed;
+    private Object[] pushedExtras;
+    private int pushCount;
+
+    DeltaCommand(Stack stack, Command op) {
+        this.stack = stack;
+        this.op = op;
+        popped = EMPTY;
+        pushed = EMPTY;
+    }
+
+    /**
+     * Command that has already been recorded.
+     *
+     * @param stack
+     * @param popped values taken off the stack, in the order they came off
+     * @param pushed values put on the stack, in the order they went on
+     */
+    DeltaCommand(Stack stack, double[] popped, double[] pushed) {
+        this(stack, popped, null, pushed, null);
+    }
+
+    /**
+     * Command that has already been recorded, including columns and exact
+     * values.
+     *
+     * @param stack
+     * @param popped values taken off the stack, in the order they came off
+     * @param poppedExtras columns and exact values matching popped (null for
+     * plain doubles), or null if there weren't any
+     * @param pushed values put on the stack, in the order they went on
+     * @param pushedExtras columns and exact values matching pushed, or null
+     */
+    DeltaCommand(Stack stack, double[] popped, Object[] poppedExtras, double[] pushed, Object[] pushedExtras) {
+        this.stack = stack;
+        this.op = null;
+        this.popped = popped;
+        this.poppedExtras = poppedExtras;
+        this.popCount = popped.length;
+        this.pushed = pushed;
+        this.pushedExtras = pushedExtras;
+        this.pushCount = pushed.length;
+    }
+
+    static DeltaCommand push(Stack stack, double value) {
+        return new DeltaCommand(stack, EMPTY, new double[]{value});
+    }
+
+    static DeltaCommand pushColumn(Stack stack, double[] column) {
+        return new DeltaCommand(stack, EMPTY, null, new double[]{Double.NaN}, new Object[]{column});
+    }
+
+    @Override
+    public void execute() {
+        if (op != null) {
+            stack.setRecorder(this);
+            try {
+                op.execute();
+            } catch (RuntimeException | Error ex) {
+                // Put back whatever it did before it failed
+                stack.setRecorder(null);
+                undo();
+                throw ex;
+            } finally {
+                stack.setRecorder(null);
+            }
+            op = null;
+        } else {
+            for (int i = 0; i < popCount; i += 1) {
+                stack.pop();
+            }
+            for (int i = 0; i < pushCount; i += 1) {
+                stack.push(pushed[i], pushedExtras != null ? pushedExtras[i] : null);
+            }
+        }
+    }
+
+    @Override
+    public void undo() {
+        for (int i = 0; i < pushCount; i += 1) {
+            stack.pop();
+        }
+        for (int i = popCount - 1; i >= 0; i -= 1) {
+            stack.push(popped[i], poppedExtras != null ? poppedExtras[i] : null);
+        }
+    }
+
+    @Override
+    public void popped(double value, Object extra) {
+        if (popCount == popped.length) {
+            popped = Arrays.copyOf(popped, Math.max(2, popped.length * 2));
+            if (poppedExtras != null) {
+                poppedExtras = Arrays.copyOf(poppedExtras, popped.length);
+            }
+        }
+        if (extra != null) {
+            if (poppedExtras == null) {
+                poppedExtras = new Object[popped.length];
+            }
+            poppedExtras[popCount] = extra;
+        }
+        popped[popCount++] = value;
+    }
+
+    @Override
+    public void pushed(double value, Object extra) {
+        if (pushCount == pushed.length) {
+            pushed = Arrays.copyOf(pushed, Math.max(1, pushed.length * 2));
+            if (pushedExtras != null) {
+                pushedExtras = Arrays.copyOf(pushedExtras, pushed.length);
+            }
+        }
+        if (extra != null) {
+            if (pushedExtras == null) {
+                pushedExtras = new Object[pushed.length];
+            }
+            pushedExtras[pushCount] = extra;
+        }
+        pushed[pushCount++] = value;
+    }
+
+    /**
+     * @return values taken off the stack, in the order they came off
+     */
+    double[] getPopped() {
+        return Arrays.copyOf(popped, popCount);
+    }
+
+    /**
+     * @return values put on the stack, in the order they went on
+     */
+    double[] getPushed() {
+        return Arrays.copyOf(pushed, pushCount);
+    }
+
+    /**
+     * @return columns and exact values matching getPopped(), or null if
+     * there weren't any
+     */
+    Object[] getPoppedExtras() {
+        return poppedExtras == null ? null : Arrays.copyOf(poppedExtras, popCount);
+    }
+
+    /**
+     * @return columns and exact values matching getPushed(), or null if
+     * there weren't any
+     */
+    Object[] getPushedExtras() {
+        return pushedExtras == null ? null : Arrays.copyOf(pushedExtras, pushCount);
+    }
+}
@@ -23,91 +23,276 @@
  */
 package com.moosemorals.calculator;
 
+import java.math.BigDecimal;
 import java.text.DecimalFormat;
-import java.util.LinkedList;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.text.FieldPosition;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 /**
+ * The number being typed.
+ *
+ * Characters go into a char buffer, and the value is kept up to date as they
+ * arrive so that reading it doesn't mean parsing the text again. While the
+ * digits fit in a long below 2^53 and there are no more than 22 of them after
+ * the point the value is a single, correctly rounded, division. Past that it
+ * falls back to Double.parseDouble, once, the first time it's asked for.
  *
  * @author Osric Wilkinson (osric@fluffypeople.com)
  */
 public final class Display {
 
     private final static String DISPLAY_FORMAT = "#############0.################";
-    private final Logger log = LoggerFactory.getLogger(Display.class);
-    private final LinkedList<String> display;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long MAX_EXACT = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
 
     private final DecimalFormat df;
+    private final StringBuffer formatScratch;
+    private final FieldPosition fieldPosition;
+
+    private char[] buffer;
+    private int length;
+    // Index of the decimal point in the buffer, or -1
+    private int pointAt;
+    private boolean negative;
+    // Digits so far as an integer, and how many of them follow the point
+    private long mantissa;
+    private int scale;
+    // Set once the digits stop fitting in mantissa
+    private boolean inexact;
+    private double value;
+    private boolean valueKnown;
+    private boolean changed;
 
     public Display() {
         df = new DecimalFormat(DISPLAY_FORMAT);
-        display = new LinkedList<>();
+        formatScratch = new StringBuffer();
+        fieldPosition = new FieldPosition(0);
+        buffer = new char[INITIAL_CAPACITY];
         reset();
     }
 
     public void push(String n) {
         if (n == null) {
             throw new IllegalArgumentException("Can't push nulls into display");
-        } else if (!n.matches("^[0-9\\.]$")) {
+        } else if (n.length() != 1) {
             throw new IllegalArgumentException("Can only push one of [0-9\\.] onto display");
         }
-
-        display.addLast(n);
+        push(n.charAt(0));
     }
 
-    public boolean hasDecimalPoint() {
-        if (!display.isEmpty()) {
-            for (String aDisplay : display) {
-                if (aDisplay.equals(".")) {
-                    return true;
-                }
+    public void push(char c) {
+        if (c == '.') {
+            if (pointAt >= 0) {
+                throw new IllegalArgumentException("Display already has a decimal point");
             }
+            pointAt = length;
+        } else if (c >= '0' && c <= '9') {
+            addDigit(c - '0');
+        } else {
+            throw new IllegalArgumentException("Can only push one of [0-9\\.] onto display");
         }
-        return false;
+        append(c);
+        changed = true;
+    }
+
+    public boolean hasDecimalPoint() {
+        return pointAt >= 0;
     }
 
     public String pop() {
-        return display.removeLast();
+        return String.valueOf(popChar());
+    }
+
+    /**
+     * Take the last character off the display, without making a String.
+     *
+     * @return the character
+     * @throws NoSuchElementException if the display is empty
+     */
+    public char popChar() {
+        if (length == 0) {
+            throw new NoSuchElementException();
+        }
+        char c = buffer[--length];
+        if (c == '.') {
+            pointAt = -1;
+        } else if (!inexact && c >= '0' && c <= '9') {
+            mantissa /= 10;
+            if (pointAt >= 0) {
+                scale -= 1;
+            }
+            updateValue();
+        } else {
+            rescan();
+        }
+        changed = true;
+        return c;
     }
 
     public void reset() {
-        display.clear();
+        changed |= length != 0;
+        length = 0;
+        rescan();
+    }
+
+    /**
+     * Check if the display has changed since the last call.
+     *
+     * @return true if it might have
+     */
+    boolean takeChanged() {
+        boolean result = changed;
+        changed = false;
+        return result;
     }
 
     public double getValue() {
-        // Special cases
-        String textValue = toString();
-        if (textValue.equals(".")) {
-            return 0;
+        if (!valueKnown) {
+            value = isBare() ? 0 : Double.parseDouble(new String(buffer, 0, length));
+            valueKnown = true;
+        }
+        return value;
+    }
+
+    /**
+     * @return the value as typed, without going through a double
+     */
+    public BigDecimal getExactValue() {
+        if (length == 0 || isBare()) {
+            return BigDecimal.ZERO;
         }
-        return Double.parseDouble(textValue);
+        return new BigDecimal(buffer, 0, length);
     }
 
     public boolean hasValue() {
-        return !display.isEmpty();
+        return length != 0;
     }
 
     public void setValue(double value) {
-        String val = df.format(value);
-        if (val.substring(val.length() - 1).equals(".")) {
-            val = val.substring(0, val.length() - 1);
+        formatScratch.setLength(0);
+        df.format(value, formatScratch, fieldPosition);
+        int end = formatScratch.length();
+        if (end > 0 && formatScratch.charAt(end - 1) == '.') {
+            end -= 1;
         }
-        display.clear();
-        for (int i = 0; i < val.length(); i += 1) {
-            display.addLast(val.substring(i, i + 1));
+        length = 0;
+        for (int i = 0; i < end; i += 1) {
+            append(formatScratch.charAt(i));
         }
+        rescan();
+        changed = true;
+    }
 
+    /**
+     * @param text
+     * @return true if the display could be showing text: a number, or a
+     * decimal point on its own
+     */
+    static boolean isValidText(String text) {
+        if (text.equals(".")) {
+            return true;
+        }
+        try {
+            new BigDecimal(text);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Replace the display with text that was previously read from
+     * toString(), without checking it.
+     *
+     * @param text
+     */
+    void setText(String text) {
+        length = 0;
+        for (int i = 0; i < text.length(); i += 1) {
+            append(text.charAt(i));
+        }
+        rescan();
+        changed = true;
     }
 
     @Override
     public String toString() {
-        if (display.isEmpty()) {
+        if (length == 0) {
             return "0";
         }
-        StringBuilder scratch = new StringBuilder();
-        display.forEach(scratch::append);
-        return scratch.toString();
+        return new String(buffer, 0, length);
+    }
+
+    private void append(char c) {
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[length++] = c;
+    }
+
+    private void addDigit(int digit) {
+        if (!inexact) {
+            long next = mantissa * 10 + digit;
+            if (next >= MAX_EXACT) {
+                inexact = true;
+            } else {
+                mantissa = next;
+            }
+        }
+        if (pointAt >= 0) {
+            scale += 1;
+        }
+        updateValue();
+    }
+
+    private void updateValue() {
+        if (!inexact && scale < POWERS_OF_TEN.length) {
+            double v = mantissa / POWERS_OF_TEN[scale];
+            value = negative ? -v : v;
+            valueKnown = true;
+        } else {
+            valueKnown = false;
+        }
+    }
+
+    /**
+     * Work out the numeric state from the buffer from scratch, after it's
+     * been replaced wholesale or lost something the incremental path can't
+     * undo.
+     */
+    private void rescan() {
+        pointAt = -1;
+        negative = false;
+        mantissa = 0;
+        scale = 0;
+        inexact = false;
+        for (int i = 0; i < length; i += 1) {
+            char c = buffer[i];
+            if (c == '.') {
+                pointAt = i;
+            } else if (c == '-') {
+                negative = true;
+            } else if (c >= '0' && c <= '9') {
+                addDigit(c - '0');
+            } else {
+                // Something the fast path doesn't understand, let
+                // parseDouble deal with it
+                inexact = true;
+            }
+        }
+        updateValue();
+    }
+
+    /**
+     * @return true if the buffer holds a point and no digits
+     */
+    private boolean isBare() {
+        return length == 1 && buffer[0] == '.';
     }
 
 }
@@ -23,16 +23,24 @@
  */
 package com.moosemorals.calculator;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import javax.script.Bindings;
-import javax.script.ScriptContext;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import javax.script.ScriptException;
-import jdk.nashorn.api.scripting.JSObject;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,67 +50,167 @@ import org.slf4j.LoggerFactory;
  */
 public final class Engine {
 
+    // Tags for commands written to the history spill
+    private static final byte SPILL_DIGIT = 1;
+    private static final byte SPILL_ENTER = 2;
+    private static final byte SPILL_DELTA = 3;
+    private static final byte SPILL_BATCH = 4;
+    private static final byte SPILL_RESET = 5;
+
+    // Tags for what else a stack slot holds, in the spill and the session
+    // journal
+    private static final byte EXTRA_NONE = 0;
+    private static final byte EXTRA_COLUMN = 1;
+    private static final byte EXTRA_EXACT = 2;
+
     private final Logger log = LoggerFactory.getLogger(Engine.class);
     private final Stack stack;
-    private final Set<EngineWatcher> engineWatchers;
+    // Copied on write so that notifying doesn't need a lock
+    private volatile EngineWatcher[] engineWatchers;
+    private int notifiedDepth;
 
     private final CommandStack commandStack;
+    private final SpillCodec codec;
     private final Display display;
-    private final Config config;
-    private final ScriptEngine scriptEngine;
-    private final Map<String, ScriptObjectMirror> scriptCache;
+    // Replaced when the config is reloaded, see setLibrary
+    private Config config;
+    private ButtonLibrary library;
+    // Library buttons bound to this engine's stack, made on first use.
+    // DeltaCommand records what they do, so they can be shared between
+    // presses.
+    private Command[] intrinsicCommands;
+    private ScriptObjectMirror[] scripts;
+    // One for each digit and the decimal point, shared by every press
+    private final DigitCommand[] digitCommands;
+    // Commands run so far by the batch that's executing, or null if there
+    // isn't one
+    private List<Command> batchCommands;
+    private SessionJournal journal;
+    // Off for an engine that has to switch buttons exactly when it's told to
+    private boolean followLibrary = true;
+    // Off for engines that run thousands of commands nobody will read about
+    private boolean logSteps = true;
 
     private final Command enterCommand = new Command() {
         double left;
 
         @Override
         public void execute() {
-            stack.push(display.getValue());
+            if (stack.getMathContext() != null) {
+                // Typed decimals are where doubles first go wrong
+                Exact.push(stack, display.getExactValue().round(stack.getMathContext()));
+            } else {
+                stack.push(display.getValue());
+            }
             display.reset();
         }
 
         @Override
         public void undo() {
-            display.setValue(stack.pop());
+            BigDecimal exact = stack.peekExact();
+            double value = stack.pop();
+            if (exact != null) {
+                display.setText(exact.toPlainString());
+            } else {
+                display.setValue(value);
+            }
         }
     };
 
-    Engine(Config config) {
-        this.config = config;
+    public Engine(Config config) {
+        this(new ButtonLibrary(config));
+    }
+
+    /**
+     * @param config button layout
+     * @param scriptCacheDir directory to keep compiled scripts in between
+     * runs, or null to compile them fresh every time
+     */
+    Engine(Config config, Path scriptCacheDir) {
+        this(new ButtonLibrary(config, scriptCacheDir));
+    }
+
+    /**
+     * Engine sharing compiled buttons with any others made from the same
+     * library. Cheap, since all it needs of its own is a stack, display and
+     * history.
+     *
+     * @param library
+     */
+    public Engine(ButtonLibrary library) {
+        this(library, true);
+    }
+
+    /**
+     * @param library
+     * @param spill false to forget history that doesn't fit in memory
+     * instead of writing it to disk, for engines that don't live long
+     * enough (or aren't driven by a person) to need deep undo, or that
+     * there are too many of to each hold files open
+     */
+    public Engine(ButtonLibrary library, boolean spill) {
+        this.library = library;
+        this.config = library.getConfig();
 
         display = new Display();
-        commandStack = new CommandStack();
-        engineWatchers = new HashSet<>();
-        scriptEngine = setupEngine();
-        scriptCache = new HashMap<>();
+        codec = new SpillCodec();
+        commandStack = new CommandStack(config.getHistoryDepth(), spill ? new SegmentSpill(null, codec) : null,
+                this::checkpoint, CommandStack.DEFAULT_CHECKPOINT_INTERVAL);
+        engineWatchers = new EngineWatcher[0];
         stack = new Stack();
+        if (config.getPrecision() > 0) {
+            stack.setMathContext(new MathContext(config.getPrecision(), RoundingMode.HALF_EVEN));
+        }
+        intrinsicCommands = new Command[config.getButtonCount()];
+        scripts = new ScriptObjectMirror[config.getButtonCount()];
+        digitCommands = new DigitCommand[11];
     }
 
-    void fillCache() {
-        new Thread(() -> {
-            log.debug("script cache load: start");
-            for (int i = 0; i < config.getButtonCount(); i += 1) {
-                Button b = config.getButton(i);
-                synchronized (scriptCache) {
-                    if (b.hasCode() && !scriptCache.containsKey(b.getLabel())) {
-                        try {
-                            JSObject func = (JSObject) scriptEngine.eval(b.getCode());
-                            scriptCache.put(b.getLabel(), (ScriptObjectMirror) func.call(null, stack));
-                        } catch (ScriptException ex) {
-                            log.error("Script cache load: Button [{}]: Code error", b.getName(), ex);
-                        }
-                    }
-                }
-            }
-            log.debug("Script cache load: complete");
-        }).start();
+    /**
+     * Start compiling button scripts in the background, most used first.
+     *
+     * @param first opcodes to compile before anything else
+     * @return completes when the most used scripts are ready
+     * @see ButtonLibrary#fillCache(int...)
+     */
+    CompletableFuture<Void> fillCache(int... first) {
+        return library.fillCache(first);
+    }
+
+    private Command getIntrinsicCommand(int opcode) {
+        Command c = intrinsicCommands[opcode];
+        if (c == null) {
+            c = library.getIntrinsic(opcode).create(stack);
+            intrinsicCommands[opcode] = c;
+        }
+        return c;
     }
 
-    private ScriptEngine setupEngine() {
-        ScriptEngine engine = new ScriptEngineManager().getEngineByName("nashorn");
-        Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+    /**
+     * @param digit 0 to 9, or a decimal point
+     * @return the shared command that types it
+     */
+    private DigitCommand getDigitCommand(char digit) {
+        int index = digit == '.' ? 10 : digit - '0';
+        if (index < 0 || index > 10) {
+            // The display will refuse it
+            return new DigitCommand(display, digit);
+        }
+        DigitCommand c = digitCommands[index];
+        if (c == null) {
+            c = new DigitCommand(display, digit);
+            digitCommands[index] = c;
+        }
+        return c;
+    }
 
-        return engine;
+    private ScriptObjectMirror getScript(int opcode) throws ScriptException {
+        ScriptObjectMirror script = scripts[opcode];
+        if (script == null) {
+            script = (ScriptObjectMirror) library.getScript(opcode).call(null, stack);
+            scripts[opcode] = script;
+        }
+        return script;
     }
 
     public double peek() {
@@ -126,90 +234,597 @@ public final class Engine {
     }
 
     public void push(final double value) {
-        commandStack.addCommand(new Command() {
-            @Override
-            public void execute() {
-                stack.push(value);
-            }
+        addCommand(DeltaCommand.push(stack, value));
+        if (journal != null) {
+            journal.push(value);
+            checkJournal();
+        }
 
-            @Override
-            public void undo() {
-                stack.pop();
-            }
-        });
+        notifyListeners();
+    }
+
+    /**
+     * Push a column of values as one stack entry. Arithmetic and maths
+     * intrinsics then work on every value in the column at once, with
+     * scalars applied to each value. Scripts and stack programs see a
+     * column as NaN.
+     *
+     * @param column values, which are copied
+     */
+    public void pushColumn(final double[] column) {
+        double[] copy = column.clone();
+        addCommand(DeltaCommand.pushColumn(stack, copy));
+        if (journal != null) {
+            journal.pushColumn(copy);
+            checkJournal();
+        }
 
         notifyListeners();
     }
 
+    /**
+     * Run a list of button presses and values as a single step. The whole
+     * batch is one entry in the undo history, and watchers are told about
+     * it once, at the end. If a step fails, the steps before it are undone
+     * and the exception is passed on, leaving the engine as it was.
+     *
+     * @param batch
+     * @throws IllegalArgumentException if the batch presses a button the
+     * config doesn't have
+     */
+    public void executeBatch(Batch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        checkLibrary();
+        int buttonCount = config.getButtonCount();
+        for (int i = 0; i < batch.size(); i += 1) {
+            if (batch.getOpcode(i) >= buttonCount) {
+                throw new IllegalArgumentException("Bad opcode " + batch.getOpcode(i) + " at step " + i);
+            }
+        }
+        commandStack.addCommand(new BatchCommand(batch));
+        if (logSteps) {
+            log.debug("Batch of {} steps, stack after {}", batch.size(), stack);
+        }
+        if (journal != null) {
+            journal.batch(batch);
+            checkJournal();
+        }
+        notifyListeners();
+    }
+
     public void undo() {
-        commandStack.undo();
+        stepBack();
         notifyListeners();
     }
 
     public void redo() {
+        stepForward();
+        notifyListeners();
+    }
+
+    /**
+     * @return false if there was nothing to undo
+     */
+    private boolean stepBack() {
+        long from = commandStack.getPosition();
+        commandStack.undo();
+        if (commandStack.getPosition() == from) {
+            return false;
+        }
+        if (journal != null) {
+            journal.undo(commandStack.getPosition(), commandStack.peekRedo());
+            checkJournal();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if there was nothing to redo
+     */
+    private boolean stepForward() {
+        long from = commandStack.getPosition();
         commandStack.redo();
+        if (commandStack.getPosition() == from) {
+            return false;
+        }
+        if (journal != null) {
+            journal.redo(commandStack.getPosition(), commandStack.peekUndo());
+            checkJournal();
+        }
+        return true;
+    }
+
+    /**
+     * Put the stack and display back to how they were after a given number
+     * of commands. Uses the nearest checkpoint, so doesn't need to step
+     * through every command in between.
+     *
+     * @param historyIndex number of commands since the start of the session
+     * (or the last Clear), between getOldestHistoryIndex() and
+     * getHistorySize()
+     * @throws IllegalArgumentException if the index is out of range
+     */
+    public void jumpTo(long historyIndex) {
+        if (journal == null) {
+            commandStack.jumpTo(historyIndex);
+            notifyListeners();
+            return;
+        }
+        if (historyIndex < commandStack.getOldest() || historyIndex > commandStack.getSize()) {
+            throw new IllegalArgumentException("Can't jump to " + historyIndex + ", history has " + commandStack.getSize() + " commands");
+        }
+
+        // Jump as far as a replay of the journal could, then step the rest
+        // of the way so the journal can pick up the commands in between
+        long reach = Math.max(journal.getFloor(), Math.min(journal.getCeiling(), historyIndex));
+        reach = Math.max(commandStack.getOldest(), Math.min(commandStack.getSize(), reach));
+        if (reach != commandStack.getPosition()) {
+            commandStack.jumpTo(reach);
+            journal.jump(reach);
+            checkJournal();
+        }
+        while (commandStack.getPosition() > historyIndex) {
+            if (!stepBack()) {
+                break;
+            }
+        }
+        while (commandStack.getPosition() < historyIndex) {
+            if (!stepForward()) {
+                break;
+            }
+        }
         notifyListeners();
     }
 
-    private Button getButton(String cmd) {
-        for (int i = 0; i < config.getButtonCount(); i += 1) {
-            Button b = config.getButton(i);
+    /**
+     * @return number of commands currently in effect
+     */
+    public long getHistoryIndex() {
+        return commandStack.getPosition();
+    }
+
+    /**
+     * @return number of commands in history, including undone ones
+     */
+    public long getHistorySize() {
+        return commandStack.getSize();
+    }
 
-            if (cmd.equals(b.getName())) {
-                return b;
+    /**
+     * @return earliest history index that can still be reached
+     */
+    public long getOldestHistoryIndex() {
+        return commandStack.getOldest();
+    }
+
+    /**
+     * Write everything this engine does from now on to a journal, so the
+     * session can be picked up again with {@link SessionJournal#replay}.
+     *
+     * @param journal the journal, or null to stop
+     */
+    void setJournal(SessionJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the buttons this engine is using, which can change if the
+     * config is reloaded
+     */
+    public Config getConfig() {
+        checkLibrary();
+        return config;
+    }
+
+    /**
+     * Switch to a different set of buttons, keeping the stack, display and
+     * history. Call from the thread that drives the engine. Engines also
+     * switch by themselves, before their next command, when their library
+     * is replaced (see {@link ButtonLibrary#replaceWith(ButtonLibrary)}).
+     *
+     * @param next
+     */
+    public void setLibrary(ButtonLibrary next) {
+        if (next == library) {
+            return;
+        }
+        library = next;
+        config = next.getConfig();
+        intrinsicCommands = new Command[config.getButtonCount()];
+        scripts = new ScriptObjectMirror[config.getButtonCount()];
+        stack.setMathContext(config.getPrecision() > 0
+                ? new MathContext(config.getPrecision(), RoundingMode.HALF_EVEN)
+                : null);
+        if (journal != null) {
+            // Opcodes in the log so far mean something else now
+            journal.config(next);
+            journal.snapshot();
+        }
+        log.debug("Switched to a config with {} buttons", config.getButtonCount());
+    }
+
+    private void checkLibrary() {
+        if (!followLibrary) {
+            return;
+        }
+        ButtonLibrary latest = library.getLatest();
+        if (latest != library) {
+            setLibrary(latest);
+        }
+    }
+
+    /**
+     * @param followLibrary false to only switch buttons when
+     * {@link #setLibrary(ButtonLibrary)} is called
+     */
+    void setFollowLibrary(boolean followLibrary) {
+        this.followLibrary = followLibrary;
+    }
+
+    void setLogSteps(boolean logSteps) {
+        this.logSteps = logSteps;
+    }
+
+    ButtonLibrary getLibrary() {
+        return library;
+    }
+
+    private void checkJournal() {
+        if (journal.wantsSnapshot()) {
+            journal.snapshot();
+        }
+    }
+
+    State captureState() {
+        return new State(stack.toArray(), stack.extrasToArray(), display.hasValue() ? display.toString() : null,
+                commandStack.getPosition());
+    }
+
+    /**
+     * Replace the stack and display, forgetting the undo history. History
+     * starts again from the position the state was captured at.
+     *
+     * @param state
+     */
+    void restoreState(State state) {
+        commandStack.reset(state.position);
+        stack.load(state.values, state.extras);
+        if (state.text != null) {
+            display.setText(state.text);
+        } else {
+            display.reset();
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Start loading a saved session, one entry at a time from the bottom of
+     * the stack. Empties the stack and display and forgets the undo history.
+     * Nothing is recorded while loading, so call {@link Loader#finish()}
+     * when done.
+     *
+     * @return a loader that pushes straight onto the stack
+     */
+    public Loader load() {
+        clear();
+        return new Loader();
+    }
+
+    /**
+     * Start reading the undo history, for saving it. Nothing can happen to
+     * the engine until the reader is closed.
+     *
+     * @return a reader that starts at the oldest command
+     */
+    HistoryReader readHistory() {
+        return new HistoryReader();
+    }
+
+    /**
+     * Reads the undo history oldest first, spilled commands included, with
+     * each command encoded the same way it's spilled to disk.
+     */
+    final class HistoryReader implements Closeable {
+
+        private final CommandStack.Reader commands;
+        private final ByteArrayOutputStream buffer;
+        private final DataOutputStream out;
+
+        private HistoryReader() {
+            commands = commandStack.read();
+            buffer = new ByteArrayOutputStream();
+            out = new DataOutputStream(buffer);
+        }
+
+        /**
+         * @return the next command, or null once they've all been read
+         * @throws IOException if spilled history can't be read
+         */
+        byte[] next() throws IOException {
+            Command c = commands.next();
+            if (c == null) {
+                return null;
+            }
+            buffer.reset();
+            codec.write(c, out);
+            out.flush();
+            return buffer.toByteArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            commands.close();
+        }
+    }
+
+    public final class Loader {
+
+        // Commands up to here in the history being loaded are in effect
+        private long historyPosition;
+
+        private Loader() {
+        }
+
+        public void push(double value) {
+            stack.push(value, null);
+        }
+
+        public void pushColumn(double[] column) {
+            stack.pushColumn(column);
+        }
+
+        public void pushExact(BigDecimal value) {
+            stack.pushExact(value);
+        }
+
+        /**
+         * @param text a number, as shown by the display
+         * @throws IllegalArgumentException if the display couldn't show it
+         */
+        public void setDisplay(String text) {
+            if (!Display.isValidText(text)) {
+                throw new IllegalArgumentException("Not a number: [" + text + "]");
             }
+            display.setText(text);
+        }
+
+        /**
+         * Get ready to load undo history that ends up at the loaded stack
+         * and display.
+         *
+         * @param oldest position of the first command to be added
+         * @param position number of commands from the start of history
+         * that are in effect. Any after that are waiting to be redone.
+         * @throws IllegalArgumentException if position is before oldest
+         */
+        public void startHistory(long oldest, long position) {
+            if (oldest < 0 || position < oldest) {
+                throw new IllegalArgumentException("Bad history position " + position + " from " + oldest);
+            }
+            commandStack.reset(oldest);
+            historyPosition = position;
+        }
+
+        /**
+         * Add the next command to the history, without running it. Commands
+         * waiting to be redone that don't fit in memory are dropped.
+         *
+         * @param record a command, encoded the way the engine spills it
+         * @throws IOException if the command can't be decoded
+         */
+        public void addHistory(byte[] record) throws IOException {
+            commandStack.append(decode(record), commandStack.getSize() < historyPosition);
+        }
+
+        /**
+         * Tell watchers (and the journal) about the loaded session.
+         */
+        public void finish() {
+            if (journal != null) {
+                journal.snapshot(captureState());
+            }
+            notifyListeners();
         }
-        throw new RuntimeException("Unknown command [" + cmd + "]");
+    }
+
+    int getHistoryDepth() {
+        return commandStack.getDepth();
+    }
+
+    /**
+     * @param c a command from this engine's history
+     * @return the command, encoded the way it's spilled to disk
+     */
+    byte[] encode(Command c) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            codec.write(c, new DataOutputStream(buffer));
+        } catch (IOException ex) {
+            // Not from a byte array
+            throw new UncheckedIOException(ex);
+        }
+        return buffer.toByteArray();
+    }
+
+    private Command decode(byte[] record) throws IOException {
+        return codec.read(new DataInputStream(new ByteArrayInputStream(record)));
+    }
+
+    /**
+     * Replay a journalled undo, redo or jump to a part of the history that
+     * was rebuilt from the journal.
+     *
+     * @param position where it ended up
+     * @throws IllegalStateException if the history doesn't reach that far
+     */
+    void replayJump(long position) {
+        long from = commandStack.getPosition();
+        if (position == from - 1) {
+            // The same way undo and redo got there, so the history ends up
+            // holding the same commands
+            commandStack.undo();
+        } else if (position == from + 1) {
+            commandStack.redo();
+        } else if (position >= commandStack.getOldest() && position <= commandStack.getSize()) {
+            commandStack.jumpTo(position);
+        }
+        checkReplayed(position);
+        notifyListeners();
+    }
+
+    /**
+     * Replay a journalled undo of a command from before the oldest one in
+     * history, which is added to the history first if it isn't there.
+     *
+     * @param record the undone command, as encoded by {@link #encode}
+     * @throws IOException if the command can't be decoded
+     */
+    void replayUndo(byte[] record) throws IOException {
+        long position = commandStack.getPosition() - 1;
+        if (commandStack.getPosition() == commandStack.getOldest()) {
+            commandStack.prepend(decode(record));
+        }
+        commandStack.undo();
+        checkReplayed(position);
+        notifyListeners();
+    }
+
+    /**
+     * Replay a journalled redo of a command from after the newest one in
+     * history, which is run and added to the history if it isn't there.
+     *
+     * @param record the redone command, as encoded by {@link #encode}
+     * @throws IOException if the command can't be decoded
+     */
+    void replayRedo(byte[] record) throws IOException {
+        if (commandStack.getPosition() < commandStack.getSize()) {
+            commandStack.redo();
+        } else {
+            commandStack.addCommand(decode(record));
+        }
+        notifyListeners();
+    }
+
+    private void checkReplayed(long position) {
+        if (commandStack.getPosition() != position) {
+            throw new IllegalStateException("History is at " + commandStack.getPosition()
+                    + " after replay, expected " + position);
+        }
+    }
+
+    /**
+     * Throw away the history, spilled commands included, for an engine
+     * that isn't going to be used again.
+     */
+    void close() {
+        commandStack.clear();
+    }
+
+    private CommandStack.Checkpoint checkpoint() {
+        final double[] values = stack.toArray();
+        final Object[] extras = stack.extrasToArray();
+        final String text = display.hasValue() ? display.toString() : null;
+        return new CommandStack.Checkpoint() {
+            @Override
+            public void restore() {
+                stack.load(values, extras);
+                if (text != null) {
+                    display.setText(text);
+                } else {
+                    display.reset();
+                }
+            }
+
+            @Override
+            public int getSize() {
+                return values.length;
+            }
+        };
+    }
+
+    /**
+     * Empty the stack and display, and forget the undo history, as if
+     * Clear had been pressed.
+     */
+    public void reset() {
+        clear();
+        if (journal != null) {
+            journal.reset();
+        }
+        notifyListeners();
+    }
+
+    private void clear() {
+        display.reset();
+        stack.reset();
+        commandStack.clear();
     }
 
     public void command(final String cmd) {
+        checkLibrary();
+        int opcode = config.getOpcode(cmd);
+        if (opcode == Config.NO_OPCODE) {
+            throw new RuntimeException("Unknown command [" + cmd + "]");
+        }
+        command(opcode);
+    }
+
+    public void command(final int opcode) {
+        checkLibrary();
+        run(opcode);
+        if (journal != null) {
+            journal.command(opcode);
+            checkJournal();
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Add a command to the history (which runs it), or to the batch if
+     * there is one.
+     */
+    private void addCommand(Command c) {
+        if (batchCommands != null) {
+            c.execute();
+            batchCommands.add(c);
+        } else {
+            commandStack.addCommand(c);
+        }
+    }
+
+    private void run(final int opcode) {
         boolean handled = false;
 
-        Button b = getButton(cmd);
+        Button b = config.getButton(opcode);
 
-        switch (cmd) {
-            case "Decimal point":
+        switch (library.getOpType(opcode)) {
+            case ButtonLibrary.OP_DECIMAL_POINT:
                 if (display.hasDecimalPoint()) {
                     handled = true;
                     break;
                 }
             // Intentional drop through
-            case "Number 0":
-            case "Number 1":
-            case "Number 2":
-            case "Number 3":
-            case "Number 4":
-            case "Number 5":
-            case "Number 6":
-            case "Number 7":
-            case "Number 8":
-            case "Number 9":
-                commandStack.addCommand(new Command() {
-                    double left;
-
-                    @Override
-                    public void execute() {
-                        display.push(b.getLabel());
-                    }
-
-                    @Override
-                    public void undo() {
-                        display.pop();
-                    }
-                });
+            case ButtonLibrary.OP_DIGIT:
+                addCommand(getDigitCommand(b.getLabel().charAt(0)));
                 handled = true;
                 break;
 
-            case "Clear":
-                commandStack.clear();
-                display.reset();
-                stack.reset();
+            case ButtonLibrary.OP_CLEAR:
+                if (batchCommands != null) {
+                    // Can't throw the history away half way through a
+                    // batch, so make the reset undoable instead
+                    addCommand(new ResetCommand(stack.toArray(), stack.extrasToArray(), display.hasValue() ? display.toString() : null));
+                } else {
+                    clear();
+                }
                 handled = true;
                 break;
             default:
                 if (display.hasValue()) {
-                    commandStack.addCommand(enterCommand);
-                    if (cmd.equals("Enter")) {
+                    addCommand(enterCommand);
+                    if (library.getOpType(opcode) == ButtonLibrary.OP_ENTER) {
                         handled = true;
                     }
                 }
@@ -217,37 +832,34 @@ public final class Engine {
         }
 
         if (handled) {
-            notifyListeners();
             return;
         }
 
-        log.debug("Stack before {}", stack.toString());
-
-        if (b.hasCode()) {
-            synchronized (scriptCache) {
-                try {
-                    if (!scriptCache.containsKey(cmd)) {
-                        JSObject func = (JSObject) scriptEngine.eval(b.getCode());
-                        scriptCache.put(cmd, (ScriptObjectMirror) func.call(null, stack));
-                    }
+        // Logging the whole stack for every step would swamp a batch
+        boolean logStack = logSteps && batchCommands == null && log.isDebugEnabled();
+        if (logStack) {
+            log.debug("Stack before {}", stack);
+        }
 
-                    if (stack.getDepth() >= b.getIn()) {
-                        commandStack.addCommand(new JsCommand(scriptCache.get(cmd)));
-                    } else {
-                        log.warn("Not enough stack for {}", b.getName());
-                        stack.push(Double.NaN);
-                    }
-                } catch (ScriptException ex) {
-                    log.error("Button [{}]: Code error", b.getName(), ex);
-                    stack.push(Double.NaN);
-                }
-            }
-        } else {
+        Intrinsics.Factory intrinsic = library.getIntrinsic(opcode);
+        if (intrinsic == null && !b.hasCode()) {
             log.error("Button [{}]: No code", b.getName());
+        } else if (stack.getDepth() < b.getIn()) {
+            log.warn("Not enough stack for {}", b.getName());
+            addCommand(DeltaCommand.push(stack, Double.NaN));
+        } else if (intrinsic != null) {
+            addCommand(new DeltaCommand(stack, getIntrinsicCommand(opcode)));
+        } else {
+            try {
+                addCommand(new DeltaCommand(stack, new JsCommand(getScript(opcode))));
+            } catch (ScriptException ex) {
+                // Already logged by the compile task
+                addCommand(DeltaCommand.push(stack, Double.NaN));
+            }
+        }
+        if (logStack) {
+            log.debug("Stack after {}", stack);
         }
-        log.debug("Stack after {}", stack.toString());
-
-        notifyListeners();
     }
 
     public boolean hasDisplayValue() {
@@ -266,23 +878,350 @@ public final class Engine {
         return stack.peek(index);
     }
 
+    /**
+     * @param index
+     * @return the column at index, or null if the entry is a scalar. Don't
+     * change it.
+     */
+    public double[] getColumnAt(int index) {
+        return stack.peekColumn(index);
+    }
+
+    /**
+     * @param index
+     * @return the exact value at index in precision mode, or null if the
+     * entry is a plain double
+     */
+    public BigDecimal getExactAt(int index) {
+        return stack.peekExact(index);
+    }
+
+    /**
+     * Read a run of stack entries in one go, top first.
+     *
+     * @param from depth of the first entry, as for getElementAt
+     * @param count maximum number of entries
+     * @param values gets the values
+     * @param extras gets the column (a double[]) or exact value (a
+     * BigDecimal) of each entry, or null for plain doubles. Don't change
+     * them.
+     * @return number of entries read, less than count near the bottom of
+     * the stack
+     */
+    public int copyTo(int from, int count, double[] values, Object[] extras) {
+        return stack.copyTo(from, count, values, extras);
+    }
+
     private void notifyListeners() {
-        synchronized (engineWatchers) {
-            for (EngineWatcher watcher : engineWatchers) {
-                watcher.onEngineChanged();
+        int depth = stack.getDepth();
+        EngineChange change = new EngineChange(stack.takeLowWater(), notifiedDepth, depth, display.takeChanged());
+        notifiedDepth = depth;
+
+        for (EngineWatcher watcher : engineWatchers) {
+            watcher.onEngineChanged(change);
+        }
+    }
+
+    public synchronized void addEngineWatcher(EngineWatcher watcher) {
+        EngineWatcher[] current = engineWatchers;
+        for (EngineWatcher w : current) {
+            if (w == watcher) {
+                return;
+            }
+        }
+        EngineWatcher[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = watcher;
+        engineWatchers = next;
+    }
+
+    public synchronized void removeEngineWatcher(EngineWatcher watcher) {
+        EngineWatcher[] current = engineWatchers;
+        for (int i = 0; i < current.length; i += 1) {
+            if (current[i] == watcher) {
+                EngineWatcher[] next = new EngineWatcher[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, next.length - i);
+                engineWatchers = next;
+                return;
+            }
+        }
+    }
+
+    private static final class DigitCommand implements Command {
+
+        private final Display display;
+        private final char digit;
+
+        DigitCommand(Display display, char digit) {
+            this.display = display;
+            this.digit = digit;
+        }
+
+        @Override
+        public void execute() {
+            display.push(digit);
+        }
+
+        @Override
+        public void undo() {
+            display.popChar();
+        }
+    }
+
+    /**
+     * Empties the stack and display, and puts them back on undo.
+     */
+    private final class ResetCommand implements Command {
+
+        private final double[] values;
+        private final Object[] extras;
+        private final String text;
+
+        ResetCommand(double[] values, Object[] extras, String text) {
+            this.values = values;
+            this.extras = extras;
+            this.text = text;
+        }
+
+        @Override
+        public void execute() {
+            stack.reset();
+            display.reset();
+        }
+
+        @Override
+        public void undo() {
+            stack.load(values, extras);
+            if (text != null) {
+                display.setText(text);
+            }
+        }
+    }
+
+    /**
+     * Runs a batch the first time it's executed, keeping the commands that
+     * run so that redo and undo can replay them.
+     */
+    private final class BatchCommand implements Command {
+
+        private Batch batch;
+        private final List<Command> commands;
+
+        BatchCommand(Batch batch) {
+            this.batch = batch;
+            commands = new ArrayList<>(batch.size());
+        }
+
+        BatchCommand(List<Command> commands) {
+            this.batch = null;
+            this.commands = commands;
+        }
+
+        @Override
+        public void execute() {
+            if (batch != null) {
+                batchCommands = commands;
+                try {
+                    for (int i = 0; i < batch.size(); i += 1) {
+                        int opcode = batch.getOpcode(i);
+                        if (opcode == Batch.PUSH) {
+                            addCommand(DeltaCommand.push(stack, batch.getValue(i)));
+                        } else {
+                            run(opcode);
+                        }
+                    }
+                } catch (RuntimeException | Error ex) {
+                    // All or nothing, so put back the steps that worked
+                    for (int i = commands.size() - 1; i >= 0; i -= 1) {
+                        commands.get(i).undo();
+                    }
+                    commands.clear();
+                    throw ex;
+                } finally {
+                    batchCommands = null;
+                    batch = null;
+                }
+            } else {
+                for (Command c : commands) {
+                    c.execute();
+                }
+            }
+        }
+
+        @Override
+        public void undo() {
+            for (int i = commands.size() - 1; i >= 0; i -= 1) {
+                commands.get(i).undo();
+            }
+        }
+    }
+
+    /**
+     * Contents of the stack and display at some point, without any history.
+     */
+    static final class State {
+
+        private final double[] values;
+        private final Object[] extras;
+        private final String text;
+        // History position, so journalled undo and redo line up
+        private final long position;
+
+        State(double[] values, Object[] extras, String text, long position) {
+            this.values = values;
+            this.extras = extras;
+            this.text = text;
+            this.position = position;
+        }
+
+        void write(DataOutput out) throws IOException {
+            writeValues(values, out);
+            writeExtras(extras, out);
+            out.writeBoolean(text != null);
+            if (text != null) {
+                out.writeUTF(text);
             }
+            out.writeLong(position);
+        }
+
+        static State read(DataInput in) throws IOException {
+            double[] values = readValues(in);
+            Object[] extras = readExtras(in);
+            String text = in.readBoolean() ? in.readUTF() : null;
+            return new State(values, extras, text, in.readLong());
         }
     }
 
-    public void addEngineWatcher(EngineWatcher watcher) {
-        synchronized (engineWatchers) {
-            engineWatchers.add(watcher);
+    /**
+     * Writes history to disk when there's too much to keep in memory.
+     */
+    private final class SpillCodec implements SegmentSpill.Codec {
+
+        @Override
+        public void write(Command c, DataOutput out) throws IOException {
+            if (c == enterCommand) {
+                out.writeByte(SPILL_ENTER);
+            } else if (c instanceof DigitCommand) {
+                out.writeByte(SPILL_DIGIT);
+                out.writeChar(((DigitCommand) c).digit);
+            } else if (c instanceof DeltaCommand) {
+                out.writeByte(SPILL_DELTA);
+                DeltaCommand delta = (DeltaCommand) c;
+                writeValues(delta.getPopped(), out);
+                writeExtras(delta.getPoppedExtras(), out);
+                writeValues(delta.getPushed(), out);
+                writeExtras(delta.getPushedExtras(), out);
+            } else if (c instanceof ResetCommand) {
+                out.writeByte(SPILL_RESET);
+                writeValues(((ResetCommand) c).values, out);
+                writeExtras(((ResetCommand) c).extras, out);
+                out.writeBoolean(((ResetCommand) c).text != null);
+                if (((ResetCommand) c).text != null) {
+                    out.writeUTF(((ResetCommand) c).text);
+                }
+            } else if (c instanceof BatchCommand) {
+                out.writeByte(SPILL_BATCH);
+                out.writeInt(((BatchCommand) c).commands.size());
+                for (Command inner : ((BatchCommand) c).commands) {
+                    write(inner, out);
+                }
+            } else {
+                throw new IllegalArgumentException("Can't spill " + c.getClass().getName());
+            }
+        }
+
+        @Override
+        public Command read(DataInput in) throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case SPILL_ENTER:
+                    return enterCommand;
+                case SPILL_DIGIT:
+                    return getDigitCommand(in.readChar());
+                case SPILL_DELTA:
+                    double[] popped = readValues(in);
+                    Object[] poppedExtras = readExtras(in);
+                    double[] pushed = readValues(in);
+                    return new DeltaCommand(stack, popped, poppedExtras, pushed, readExtras(in));
+                case SPILL_RESET:
+                    double[] values = readValues(in);
+                    Object[] extras = readExtras(in);
+                    return new ResetCommand(values, extras, in.readBoolean() ? in.readUTF() : null);
+                case SPILL_BATCH:
+                    int count = in.readInt();
+                    List<Command> commands = new ArrayList<>(count);
+                    for (int i = 0; i < count; i += 1) {
+                        commands.add(read(in));
+                    }
+                    return new BatchCommand(commands);
+                default:
+                    throw new IOException("Unknown history tag " + tag);
+            }
         }
     }
 
-    public void removeEngineWatcher(EngineWatcher watcher) {
-        synchronized (engineWatchers) {
-            engineWatchers.remove(watcher);
+    static void writeValues(double[] values, DataOutput out) throws IOException {
+        out.writeInt(values.length);
+        for (double v : values) {
+            out.writeDouble(v);
+        }
+    }
+
+    static double[] readValues(DataInput in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i += 1) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    // A null array is written as a length of -1
+    static void writeExtras(Object[] extras, DataOutput out) throws IOException {
+        if (extras == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(extras.length);
+        for (Object extra : extras) {
+            writeExtra(extra, out);
+        }
+    }
+
+    static void writeExtra(Object extra, DataOutput out) throws IOException {
+        if (extra instanceof double[]) {
+            out.writeByte(EXTRA_COLUMN);
+            writeValues((double[]) extra, out);
+        } else if (extra instanceof BigDecimal) {
+            out.writeByte(EXTRA_EXACT);
+            out.writeUTF(extra.toString());
+        } else {
+            out.writeByte(EXTRA_NONE);
+        }
+    }
+
+    static Object[] readExtras(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        Object[] extras = new Object[count];
+        for (int i = 0; i < count; i += 1) {
+            extras[i] = readExtra(in);
+        }
+        return extras;
+    }
+
+    static Object readExtra(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case EXTRA_NONE:
+                return null;
+            case EXTRA_COLUMN:
+                return readValues(in);
+            case EXTRA_EXACT:
+                return new BigDecimal(in.readUTF());
+            default:
+                throw new IOException("Unknown stack value tag " + tag);
         }
     }
 
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+/**
+ * What changed in an Engine since watchers were last told. Stack slots are
+ * counted from the bottom, so a push or pop only changes the top few.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class EngineChange {
+
+    private final int firstChanged;
+    private final int oldDepth;
+    private final int newDepth;
+    private final boolean displayChanged;
+
+    public EngineChange(int firstChanged, int oldDepth, int newDepth, boolean displayChanged) {
+        this.firstChanged = Math.min(firstChanged, Math.min(oldDepth, newDepth));
+        this.oldDepth = oldDepth;
+        this.newDepth = newDepth;
+        this.displayChanged = displayChanged;
+    }
+
+    /**
+     * @return lowest stack slot, counted from the bottom, that might be
+     * different. Everything below it is the same as before.
+     */
+    public int getFirstChanged() {
+        return firstChanged;
+    }
+
+    public int getOldDepth() {
+        return oldDepth;
+    }
+
+    public int getNewDepth() {
+        return newDepth;
+    }
+
+    public boolean isDisplayChanged() {
+        return displayChanged;
+    }
+
+    /**
+     * @return true if nothing changed after all
+     */
+    public boolean isEmpty() {
+        return !displayChanged && oldDepth == newDepth && firstChanged >= newDepth;
+    }
+
+    /**
+     * Combine with a change that happened after this one.
+     *
+     * @param later
+     * @return a change covering both
+     */
+    public EngineChange merge(EngineChange later) {
+        return new EngineChange(
+                Math.min(firstChanged, later.firstChanged),
+                oldDepth,
+                later.newDepth,
+                displayChanged || later.displayChanged);
+    }
+
+    @Override
+    public String toString() {
+        return "EngineChange[from " + firstChanged + ", depth " + oldDepth + " -> " + newDepth
+                + (displayChanged ? ", display" : "") + "]";
+    }
+}
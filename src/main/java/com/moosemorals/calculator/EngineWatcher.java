@@ -31,4 +31,14 @@ package com.moosemorals.calculator;
 public interface EngineWatcher {
 
     void onEngineChanged();
+
+    /**
+     * Called instead of onEngineChanged() with details of what changed.
+     * Watchers that repaint everything can ignore it.
+     *
+     * @param change
+     */
+    default void onEngineChanged(EngineChange change) {
+        onEngineChanged();
+    }
 }
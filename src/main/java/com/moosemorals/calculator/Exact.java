@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Precision mode support for the intrinsics. Values stay as plain doubles
+ * for as long as every result is exact, which is checked with error-free
+ * transformations rather than by doing the sum twice. Only when a result
+ * would be rounded (or overflow) are the operands promoted to BigDecimal,
+ * and a BigDecimal result that a double can hold exactly is demoted again.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+final class Exact {
+
+    /**
+     * A binary operator that can check its double result and redo the sum
+     * with BigDecimals. Arguments are in stack order.
+     */
+    interface BinaryOp {
+
+        /**
+         * @param a
+         * @param b
+         * @param result the double result of the operation
+         * @return true if result is exactly right (or if a BigDecimal
+         * couldn't do any better)
+         */
+        boolean isExact(double a, double b, double result);
+
+        BigDecimal apply(BigDecimal a, BigDecimal b, MathContext mc);
+    }
+
+    static final BinaryOp ADD = new BinaryOp() {
+        @Override
+        public boolean isExact(double a, double b, double result) {
+            return sumIsExact(a, b, result);
+        }
+
+        @Override
+        public BigDecimal apply(BigDecimal a, BigDecimal b, MathContext mc) {
+            return a.add(b, mc);
+        }
+    };
+
+    static final BinaryOp SUBTRACT = new BinaryOp() {
+        @Override
+        public boolean isExact(double a, double b, double result) {
+            return sumIsExact(a, -b, result);
+        }
+
+        @Override
+        public BigDecimal apply(BigDecimal a, BigDecimal b, MathContext mc) {
+            return a.subtract(b, mc);
+        }
+    };
+
+    static final BinaryOp MULTIPLY = new BinaryOp() {
+        @Override
+        public boolean isExact(double a, double b, double result) {
+            return productIsExact(a, b, result);
+        }
+
+        @Override
+        public BigDecimal apply(BigDecimal a, BigDecimal b, MathContext mc) {
+            return a.multiply(b, mc);
+        }
+    };
+
+    static final BinaryOp DIVIDE = new BinaryOp() {
+        @Override
+        public boolean isExact(double a, double b, double result) {
+            if (b == 0 || !isFinite(a) || !isFinite(b)) {
+                // Infinity or NaN either way
+                return true;
+            }
+            return isFinite(result) && productIsExact(result, b, result * b) && result * b == a;
+        }
+
+        @Override
+        public BigDecimal apply(BigDecimal a, BigDecimal b, MathContext mc) {
+            return a.divide(b, mc);
+        }
+    };
+
+    // 2^27 + 1, for splitting a double into two halves that multiply exactly
+    private static final double SPLITTER = 134217729.0;
+    // Above this, splitting overflows
+    private static final double SPLIT_LIMIT = 1e300;
+
+    private Exact() {
+        // Static only
+    }
+
+    private static boolean isFinite(double d) {
+        return !Double.isNaN(d) && !Double.isInfinite(d);
+    }
+
+    /**
+     * Knuth's two-sum: the rounding error of a + b is itself a double, and
+     * can be found exactly.
+     */
+    static boolean sumIsExact(double a, double b, double sum) {
+        if (!isFinite(a) || !isFinite(b)) {
+            return true;
+        }
+        if (!isFinite(sum)) {
+            // Overflowed, which a BigDecimal wouldn't
+            return false;
+        }
+        double bb = sum - a;
+        double error = (a - (sum - bb)) + (b - bb);
+        return error == 0;
+    }
+
+    /**
+     * Dekker's two-product, the same idea for a * b.
+     */
+    static boolean productIsExact(double a, double b, double product) {
+        if (!isFinite(a) || !isFinite(b)) {
+            return true;
+        }
+        if (product == 0) {
+            // Zero is only right if one side was, otherwise it underflowed
+            return a == 0 || b == 0;
+        }
+        if (!isFinite(product) || Math.abs(a) > SPLIT_LIMIT || Math.abs(b) > SPLIT_LIMIT
+                || (product != 0 && Math.abs(product) < Double.MIN_NORMAL)) {
+            return false;
+        }
+        double ca = SPLITTER * a;
+        double aHigh = ca - (ca - a);
+        double aLow = a - aHigh;
+        double cb = SPLITTER * b;
+        double bHigh = cb - (cb - b);
+        double bLow = b - bHigh;
+        double error = ((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh) + aLow * bLow;
+        return error == 0;
+    }
+
+    /**
+     * @param value
+     * @param exact exact value of the slot, or null
+     * @return the exact value, promoting the double if needed. Null for
+     * NaN and infinities, which BigDecimal can't hold.
+     */
+    static BigDecimal toBigDecimal(double value, BigDecimal exact) {
+        if (exact != null) {
+            return exact;
+        }
+        return isFinite(value) ? new BigDecimal(value) : null;
+    }
+
+    /**
+     * Push a result, as a plain double if that holds it exactly.
+     *
+     * @param stack
+     * @param value
+     */
+    static void push(Stack stack, BigDecimal value) {
+        double d = value.doubleValue();
+        if (isFinite(d) && new BigDecimal(d).compareTo(value) == 0) {
+            stack.push(d);
+        } else {
+            stack.pushExact(value);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * Built in button implementations, written in Java rather than JavaScript.
+ *
+ * Buttons name an intrinsic with an &lt;intrinsic&gt; tag instead of carrying
+ * a &lt;script&gt;. An Engine creates one Command per button (see
+ * {@link #create(String, Stack)}) and reuses it for every press, wrapping
+ * each press in a {@link DeltaCommand} that records what came off and went
+ * on the stack. Undo and redo replay that record, so an intrinsic's own
+ * undo is never called and nothing can rely on state kept in the Command
+ * between presses.
+ *
+ * Arithmetic and maths intrinsics also work on columns (see
+ * {@link Stack#pushColumn(double[])}), value by value, with a scalar on the
+ * other side applied to every value. Mixing columns of different lengths
+ * gives NaN.
+ *
+ * In precision mode (see {@link Stack#setMathContext}) add, subtract,
+ * multiply, divide, reciprocal and negate keep exact results, switching to
+ * BigDecimal only when a double result would be rounded. The other
+ * intrinsics work on the nearest double.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class Intrinsics {
+
+    /**
+     * Makes Commands that work on a particular stack.
+     */
+    public interface Factory {
+
+        Command create(Stack stack);
+    }
+
+    private static final Map<String, Factory> REGISTRY;
+
+    static {
+        Map<String, Factory> r = new HashMap<>();
+
+        r.put("add", binary((right, left) -> right + left, Columns.ADD, Exact.ADD));
+        r.put("subtract", binary((right, left) -> right - left, Columns.SUBTRACT, Exact.SUBTRACT));
+        r.put("multiply", binary((right, left) -> right * left, Columns.MULTIPLY, Exact.MULTIPLY));
+        r.put("divide", binary((right, left) -> right / left, Columns.DIVIDE, Exact.DIVIDE));
+        r.put("pow", binary(Math::pow, Columns.of(Math::pow), null));
+
+        r.put("sin", unary(Math::sin, Columns.of(Math::sin), null));
+        r.put("cos", unary(Math::cos, Columns.of(Math::cos), null));
+        r.put("tan", unary(Math::tan, Columns.of(Math::tan), null));
+        r.put("sqrt", unary(Math::sqrt, Columns.SQRT, null));
+        r.put("ln", unary(Math::log, Columns.of(Math::log), null));
+        r.put("reciprocal", ReciprocalCommand::new);
+        r.put("negate", unary(left -> -left, Columns.NEGATE, BigDecimal::negate));
+
+        r.put("pi", constant(Math.PI));
+        r.put("dup", DupCommand::new);
+        r.put("swap", SwapCommand::new);
+        r.put("drop", DropCommand::new);
+
+        REGISTRY = Collections.unmodifiableMap(r);
+    }
+
+    private Intrinsics() {
+        // Static only
+    }
+
+    public static boolean exists(String name) {
+        return REGISTRY.containsKey(name);
+    }
+
+    public static Set<String> getNames() {
+        return REGISTRY.keySet();
+    }
+
+    /**
+     * Look up an intrinsic by name.
+     *
+     * @param name
+     * @return the factory for the intrinsic, or null if there isn't one with
+     * that name
+     */
+    public static Factory get(String name) {
+        return REGISTRY.get(name);
+    }
+
+    public static Command create(String name, Stack stack) {
+        Factory f = REGISTRY.get(name);
+        if (f == null) {
+            throw new IllegalArgumentException("Unknown intrinsic [" + name + "]");
+        }
+        return f.create(stack);
+    }
+
+    private static Factory unary(DoubleUnaryOperator op, UnaryOperator<double[]> kernel, UnaryOperator<BigDecimal> exact) {
+        return stack -> new UnaryCommand(stack, op, kernel, exact);
+    }
+
+    /**
+     * Binary operators get the values in stack order, so for "a b -" the
+     * operator is called with (a, b).
+     */
+    private static Factory binary(DoubleBinaryOperator op, Columns.BinaryKernel kernel, Exact.BinaryOp exact) {
+        return stack -> new BinaryCommand(stack, op, kernel, exact);
+    }
+
+    private static Factory constant(double value) {
+        return stack -> new ConstantCommand(stack, value);
+    }
+
+    /**
+     * Work out a op b for scalars and push the result, keeping it exact in
+     * precision mode.
+     *
+     * @param stack
+     * @param op double version
+     * @param exact exact version, or null if there isn't one
+     * @param a
+     * @param aExact exact value of a, or null if it's a plain double
+     * @param b
+     * @param bExact exact value of b, or null
+     */
+    private static void pushScalar(Stack stack, DoubleBinaryOperator op, Exact.BinaryOp exact,
+            double a, BigDecimal aExact, double b, BigDecimal bExact) {
+        MathContext mc = stack.getMathContext();
+        if (mc == null || exact == null) {
+            stack.push(op.applyAsDouble(a, b));
+            return;
+        }
+        if (aExact == null && bExact == null) {
+            // Fast path, both plain doubles
+            double result = op.applyAsDouble(a, b);
+            if (exact.isExact(a, b, result)) {
+                stack.push(result);
+                return;
+            }
+        }
+        BigDecimal bigA = Exact.toBigDecimal(a, aExact);
+        BigDecimal bigB = Exact.toBigDecimal(b, bExact);
+        if (bigA == null || bigB == null) {
+            stack.push(op.applyAsDouble(a, b));
+            return;
+        }
+        try {
+            Exact.push(stack, exact.apply(bigA, bigB, mc));
+        } catch (ArithmeticException ex) {
+            // Division by zero, which doubles know how to do
+            stack.push(op.applyAsDouble(a, b));
+        }
+    }
+
+    private static final class UnaryCommand implements Command {
+
+        private final Stack stack;
+        private final DoubleUnaryOperator op;
+        private final UnaryOperator<double[]> kernel;
+        private final UnaryOperator<BigDecimal> exact;
+        private double left;
+        private Object leftExtra;
+
+        UnaryCommand(Stack stack, DoubleUnaryOperator op, UnaryOperator<double[]> kernel, UnaryOperator<BigDecimal> exact) {
+            this.stack = stack;
+            this.op = op;
+            this.kernel = kernel;
+            this.exact = exact;
+        }
+
+        @Override
+        public void execute() {
+            leftExtra = stack.peekExtra();
+            left = stack.pop();
+            if (leftExtra instanceof double[]) {
+                stack.pushColumn(kernel.apply((double[]) leftExtra));
+            } else if (leftExtra != null && exact != null) {
+                Exact.push(stack, exact.apply((BigDecimal) leftExtra));
+            } else {
+                stack.push(op.applyAsDouble(left));
+            }
+        }
+
+        @Override
+        public void undo() {
+            stack.pop();
+            stack.push(left, leftExtra);
+        }
+    }
+
+    private static final class BinaryCommand implements Command {
+
+        private final Stack stack;
+        private final DoubleBinaryOperator op;
+        private final Columns.BinaryKernel kernel;
+        private final Exact.BinaryOp exact;
+        private double left;
+        private double right;
+        private Object leftExtra;
+        private Object rightExtra;
+
+        BinaryCommand(Stack stack, DoubleBinaryOperator op, Columns.BinaryKernel kernel, Exact.BinaryOp exact) {
+            this.stack = stack;
+            this.op = op;
+            this.kernel = kernel;
+            this.exact = exact;
+        }
+
+        @Override
+        public void execute() {
+            leftExtra = stack.peekExtra();
+            left = stack.pop();
+            rightExtra = stack.peekExtra();
+            right = stack.pop();
+
+            boolean leftColumn = leftExtra instanceof double[];
+            boolean rightColumn = rightExtra instanceof double[];
+            if (leftColumn && rightColumn) {
+                double[] l = (double[]) leftExtra;
+                double[] r = (double[]) rightExtra;
+                if (l.length == r.length) {
+                    stack.pushColumn(kernel.apply(r, l));
+                } else {
+                    stack.push(Double.NaN);
+                }
+            } else if (rightColumn) {
+                stack.pushColumn(kernel.apply((double[]) rightExtra, left));
+            } else if (leftColumn) {
+                stack.pushColumn(kernel.apply(right, (double[]) leftExtra));
+            } else {
+                pushScalar(stack, op, exact, right, (BigDecimal) rightExtra, left, (BigDecimal) leftExtra);
+            }
+        }
+
+        @Override
+        public void undo() {
+            stack.pop();
+            stack.push(right, rightExtra);
+            stack.push(left, leftExtra);
+        }
+    }
+
+    /**
+     * 1/x, which goes through divide so that it's exact in precision mode.
+     */
+    private static final class ReciprocalCommand implements Command {
+
+        private static final DoubleBinaryOperator DIVIDE = (right, left) -> right / left;
+
+        private final Stack stack;
+        private double left;
+        private Object leftExtra;
+
+        ReciprocalCommand(Stack stack) {
+            this.stack = stack;
+        }
+
+        @Override
+        public void execute() {
+            leftExtra = stack.peekExtra();
+            left = stack.pop();
+            if (leftExtra instanceof double[]) {
+                stack.pushColumn(Columns.DIVIDE.apply(1, (double[]) leftExtra));
+            } else {
+                pushScalar(stack, DIVIDE, Exact.DIVIDE, 1, null, left, (BigDecimal) leftExtra);
+            }
+        }
+
+        @Override
+        public void undo() {
+            stack.pop();
+            stack.push(left, leftExtra);
+        }
+    }
+
+    private static final class ConstantCommand implements Command {
+
+        private final Stack stack;
+        private final double value;
+
+        ConstantCommand(Stack stack, double value) {
+            this.stack = stack;
+            this.value = value;
+        }
+
+        @Override
+        public void execute() {
+            stack.push(value);
+        }
+
+        @Override
+        public void undo() {
+            stack.pop();
+        }
+    }
+
+    private static final class DupCommand implements Command {
+
+        private final Stack stack;
+
+        DupCommand(Stack stack) {
+            this.stack = stack;
+        }
+
+        @Override
+        public void execute() {
+            stack.push(stack.peek(), stack.peekExtra());
+        }
+
+        @Override
+        public void undo() {
+            stack.pop();
+        }
+    }
+
+    private static final class SwapCommand implements Command {
+
+        private final Stack stack;
+
+        SwapCommand(Stack stack) {
+            this.stack = stack;
+        }
+
+        @Override
+        public void execute() {
+            Object leftExtra = stack.peekExtra();
+            double left = stack.pop();
+            Object rightExtra = stack.peekExtra();
+            double right = stack.pop();
+            stack.push(left, leftExtra);
+            stack.push(right, rightExtra);
+        }
+
+        @Override
+        public void undo() {
+            execute();
+        }
+    }
+
+    private static final class DropCommand implements Command {
+
+        private final Stack stack;
+        private double left;
+        private Object leftExtra;
+
+        DropCommand(Stack stack) {
+            this.stack = stack;
+        }
+
+        @Override
+        public void execute() {
+            leftExtra = stack.peekExtra();
+            left = stack.pop();
+        }
+
+        @Override
+        public void undo() {
+            stack.push(left, leftExtra);
+        }
+    }
+}
@@ -23,10 +23,23 @@
  */
 package com.moosemorals.calculator;
 
+import com.moosemorals.calculator.server.Server;
 import com.moosemorals.calculator.ui.UI;
-import com.moosemorals.calculator.xml.ConfigFileParser;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.prefs.Preferences;
 import javax.swing.SwingUtilities;
 import javax.xml.stream.XMLStreamException;
@@ -35,7 +48,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Start the GUI
+ * Start the GUI, or with --batch [file] run lines of RPN from the file (or
+ * stdin) and write the results to stdout without touching AWT, or with
+ * --serve [port] host calculator sessions over TCP.
  *
  * @author Osric Wilkinson <osric@fluffypeople.com>
  */
@@ -46,28 +61,210 @@ public class Main {
     public static final String KEY_FRAME_TOP = "frame_top";
     public static final String KEY_FRAME_KNOWN = "frame_bounds";
     public static final String KEY_FRAME_HEIGHT = "frame_height";
+    public static final String KEY_USAGE = "button_usage";
+
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+    private static final int DEFAULT_PORT = 7283;
+    // Buttons from the usage profile to get ready ahead of the rest
+    private static final int HOT_BUTTONS = 8;
 
     private static final Logger log = LoggerFactory.getLogger(Main.class);
 
     public static void main(String[] args) throws IOException {
 
-        Preferences prefs = Preferences.userNodeForPackage(Main.class);
+        // --config <file> uses (and watches) a config file instead of the
+        // built in one
+        Path configFile = null;
+        if (args.length > 1 && args[0].equals("--config")) {
+            configFile = Paths.get(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
 
         Config config;
-        try {
-            config = new ConfigFileParser().parse(Main.class.getResourceAsStream("/config.xml"));
+        try (InputStream in = configFile != null
+                ? Files.newInputStream(configFile)
+                : Main.class.getResourceAsStream("/config.xml")) {
+            config = ConfigSnapshot.load(in, ConfigSnapshot.getDefaultFile());
         } catch (XMLStreamException ex) {
             throw new RuntimeException("Can't read config.xml: " + ex.getMessage(), ex);
         }
 
-        Engine engine = new Engine(config);
-        engine.fillCache();
-        final UI ui = new UI(prefs, config, engine);
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(config, args.length > 1 ? args[1] : null);
+        } else if (args.length > 0 && args[0].equals("--serve")) {
+            System.setProperty("java.awt.headless", "true");
+            int port = DEFAULT_PORT;
+            if (args.length > 1) {
+                port = parsePort(args[1]);
+                if (port < 0) {
+                    usage("Bad port [" + args[1] + "]");
+                    return;
+                }
+            }
+            Server server = new Server(config, port);
+            if (configFile != null) {
+                new ConfigWatcher(configFile, (Config next) -> server.reload(next).join());
+            }
+        } else {
+            startGui(config, configFile);
+        }
+    }
+
+    /**
+     * @param raw
+     * @return the port, or -1 if raw isn't one
+     */
+    private static int parsePort(String raw) {
+        try {
+            int port = Integer.parseInt(raw, 10);
+            return port >= 0 && port <= 0xffff ? port : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: java -jar Calculator.jar [--config <file>] [--batch [file] | --serve [port]]");
+        System.exit(2);
+    }
+
+    private static void runBatch(Config config, String fileName) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        // Debug logging for every line would cost more than the sums
+        Logger root = LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        if (System.getProperty("calculator.log") == null && root instanceof ch.qos.logback.classic.Logger) {
+            ((ch.qos.logback.classic.Logger) root).setLevel(ch.qos.logback.classic.Level.WARN);
+        }
+
+        BatchRunner runner = new BatchRunner(config, Runtime.getRuntime().availableProcessors(),
+                ScriptCompiler.getDefaultCacheDir());
+
+        try (BufferedReader in = fileName != null
+                ? Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)
+                : new BufferedReader(new InputStreamReader(Channels.newInputStream(Channels.newChannel(System.in)), StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+                Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(Channels.newChannel(System.out)), StandardCharsets.UTF_8), IO_BUFFER_SIZE)) {
+            long start = System.nanoTime();
+            long lines = runner.run(in, out);
+            log.info("Evaluated {} lines in {}ms", lines, (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    /**
+     * Start up in phases, so the window is on screen as soon as possible.
+     * The JVM shows the splash image from the manifest until then. Scripts
+     * compile in the background afterwards, most used first, and any
+     * button pressed before its turn compiles on the spot.
+     */
+    private static void startGui(Config config, Path configFile) throws IOException {
+        StartupTimer.mark("config");
+        Preferences prefs = Preferences.userNodeForPackage(Main.class);
+
+        Engine engine = new Engine(config, ScriptCompiler.getDefaultCacheDir());
+        UsageProfile usage = new UsageProfile(prefs.node(KEY_USAGE), config);
+        Runtime.getRuntime().addShutdownHook(new Thread(usage::save, "Usage profile shutdown"));
+        final UI ui = new UI(prefs, config, engine, usage);
+        StartupTimer.mark("engine");
 
         SwingUtilities.invokeLater(() -> {
             ui.build();
+            StartupTimer.mark("window");
+
+            // Compiling starts first, so the pool is busy with the most
+            // used buttons while replay works through the journal (and
+            // compiles anything it needs that the pool hasn't got to yet)
+            int[] hot = usage.getHottest(HOT_BUTTONS);
+            ButtonLibrary library = engine.getLibrary();
+            engine.fillCache(hot).thenRunAsync(() -> {
+                StartupTimer.mark("scripts");
+                UsageProfile.warmUp(library, hot);
+                StartupTimer.mark("warm up");
+            }, Main::startBackground);
+
+            // On the event thread, so replay is done before any keys the
+            // user has pressed get handled
+            openJournal(engine);
+            StartupTimer.mark("journal");
+
+            if (configFile != null) {
+                watchConfig(configFile, library, ui);
+            }
         });
+    }
+
+    /**
+     * Reload the config when the file changes. Changed scripts compile on
+     * the watcher's thread while the calculator carries on, then the
+     * engine and buttons switch over together on the event thread.
+     */
+    private static void watchConfig(Path configFile, ButtonLibrary library, UI ui) {
+        try {
+            new ConfigWatcher(configFile, (Config next) -> {
+                ButtonLibrary current = library.getLatest();
+                ButtonLibrary reloaded = current.reload(next).join();
+                try {
+                    // Wait, so the next reload starts from this one
+                    SwingUtilities.invokeAndWait(() -> {
+                        current.replaceWith(reloaded);
+                        ui.setLibrary(reloaded);
+                    });
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (InvocationTargetException ex) {
+                    log.error("Can't switch to the reloaded config", ex.getCause());
+                }
+            });
+        } catch (IOException ex) {
+            log.warn("Can't watch {} for changes: {}", configFile, ex.getMessage());
+        }
+    }
+
+    /**
+     * Run a low priority job on its own thread, so it never holds up the
+     * event thread or the compile pool.
+     */
+    private static void startBackground(Runnable job) {
+        Thread t = new Thread(job, "Background");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Pick up the last session where it left off, and keep a journal of
+     * this one. Carries on without if the journal can't be opened, since
+     * losing the session is better than not starting.
+     */
+    private static void openJournal(Engine engine) {
+        Path dir = SessionJournal.getDefaultDir();
+        SessionJournal journal;
+        try {
+            journal = SessionJournal.open(dir);
+            try {
+                journal.replay(engine);
+            } catch (RuntimeException ex) {
+                log.warn("Can't replay session journal, starting a new session: {}", ex.toString());
+                journal.close();
+                // Throw away whatever was replayed before it went wrong
+                engine.load().finish();
+                SessionJournal.moveAside(dir);
+                journal = SessionJournal.open(dir);
+                journal.replay(engine);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Can't open session journal, this session won't be saved: {}", ex.getMessage());
+            return;
+        }
 
+        SessionJournal opened = journal;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                opened.close();
+            } catch (IOException ex) {
+                log.warn("Can't close session journal: {}", ex.getMessage());
+            }
+        }, "Session journal shutdown"));
     }
 
 }
@@ -0,0 +1,370 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A small stack language for defining buttons without JavaScript.
+ *
+ * Programs are a whitespace separated list of numbers and words, for example
+ * "swap pow" or "x 2 * 1 +". Arithmetic words take their arguments in stack
+ * order, so "a b -" is a - b.
+ *
+ * If the program doesn't mention the names x, y, z or t then it runs
+ * directly on the stack, and takes as many values as it needs. If it does use
+ * them, then x is the value on top of the stack when the button is pressed, y
+ * is the one below it, and so on. These values are taken off the stack, and
+ * the program starts with nothing on its own stack.
+ *
+ * Programs are compiled once into a MethodHandle per output, and the results
+ * are pushed in order. A value that's used more than once (through dup) is
+ * worked out once per run into a scratch slot, and each copy reads the slot.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+public final class RpnProgram implements Intrinsics.Factory {
+
+    private static final String[] NAMES = {"x", "y", "z", "t"};
+    private static final Map<String, MethodHandle> UNARY = new HashMap<>();
+    private static final Map<String, MethodHandle> BINARY = new HashMap<>();
+    private static final Map<String, Double> CONSTANTS = new HashMap<>();
+    private static final MethodHandle INPUT;
+    // Type of every value: (inputs, scratch) -> double
+    private static final MethodType VALUE = MethodType.methodType(double.class, double[].class, double[].class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType unary = MethodType.methodType(double.class, double.class);
+            MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+
+            UNARY.put("neg", lookup.findStatic(RpnProgram.class, "neg", unary));
+            UNARY.put("recip", lookup.findStatic(RpnProgram.class, "recip", unary));
+            UNARY.put("sqrt", lookup.findStatic(Math.class, "sqrt", unary));
+            UNARY.put("sin", lookup.findStatic(Math.class, "sin", unary));
+            UNARY.put("cos", lookup.findStatic(Math.class, "cos", unary));
+            UNARY.put("tan", lookup.findStatic(Math.class, "tan", unary));
+            UNARY.put("ln", lookup.findStatic(Math.class, "log", unary));
+            UNARY.put("exp", lookup.findStatic(Math.class, "exp", unary));
+            UNARY.put("abs", lookup.findStatic(Math.class, "abs", unary));
+
+            BINARY.put("+", lookup.findStatic(RpnProgram.class, "add", binary));
+            BINARY.put("-", lookup.findStatic(RpnProgram.class, "subtract", binary));
+            BINARY.put("*", lookup.findStatic(RpnProgram.class, "multiply", binary));
+            BINARY.put("/", lookup.findStatic(RpnProgram.class, "divide", binary));
+            BINARY.put("^", lookup.findStatic(Math.class, "pow", binary));
+            BINARY.put("pow", BINARY.get("^"));
+
+            INPUT = MethodHandles.arrayElementGetter(double[].class);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+
+        CONSTANTS.put("pi", Math.PI);
+        CONSTANTS.put("e", Math.E);
+    }
+
+    private final String source;
+    private final int in;
+    private final MethodHandle[] lets;
+    private final MethodHandle[] outputs;
+
+    private RpnProgram(String source, int in, MethodHandle[] lets, MethodHandle[] outputs) {
+        this.source = source;
+        this.in = in;
+        this.lets = lets;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Compile a program.
+     *
+     * @param source
+     * @return
+     * @throws IllegalArgumentException if the program doesn't make sense
+     */
+    public static RpnProgram compile(String source) {
+        String[] words = source.trim().split("\\s+");
+        if (words.length == 1 && words[0].isEmpty()) {
+            throw new IllegalArgumentException("Empty program");
+        }
+
+        boolean named = false;
+        for (String word : words) {
+            if (nameIndex(word) >= 0) {
+                named = true;
+                break;
+            }
+        }
+
+        // Values the program has worked out so far, each as a handle of
+        // type (double[], double[])double that reads from the inputs and
+        // the scratch slots. Index 0 is the bottom of the program's stack.
+        List<MethodHandle> stack = new ArrayList<>();
+        // Values that are worked out first, in order, into scratch slots
+        List<MethodHandle> lets = new ArrayList<>();
+        // Values that are no cheaper to keep than to work out again
+        Set<MethodHandle> leaves = Collections.newSetFromMap(new IdentityHashMap<>());
+        // How many values have been taken from the real stack
+        int in = 0;
+
+        for (String word : words) {
+            int name = nameIndex(word);
+            if (name >= 0) {
+                stack.add(leaf(leaves, input(name)));
+                in = Math.max(in, name + 1);
+                continue;
+            }
+
+            int needed;
+            if (UNARY.containsKey(word) || word.equals("dup") || word.equals("drop")) {
+                needed = 1;
+            } else if (BINARY.containsKey(word) || word.equals("swap")) {
+                needed = 2;
+            } else {
+                needed = 0;
+            }
+
+            while (stack.size() < needed) {
+                if (named) {
+                    throw new IllegalArgumentException("Not enough values for [" + word + "] in [" + source + "]");
+                }
+                stack.add(0, leaf(leaves, input(in)));
+                in += 1;
+            }
+
+            if (UNARY.containsKey(word)) {
+                MethodHandle arg = pop(stack);
+                stack.add(MethodHandles.filterReturnValue(arg, UNARY.get(word)));
+            } else if (BINARY.containsKey(word)) {
+                MethodHandle right = pop(stack);
+                MethodHandle left = pop(stack);
+                MethodHandle combined = MethodHandles.collectArguments(
+                        MethodHandles.collectArguments(BINARY.get(word), 1, right), 0, left);
+                stack.add(MethodHandles.permuteArguments(combined, VALUE, 0, 1, 0, 1));
+            } else if (CONSTANTS.containsKey(word)) {
+                stack.add(leaf(leaves, constant(CONSTANTS.get(word))));
+            } else {
+                switch (word) {
+                    case "dup":
+                        MethodHandle top = pop(stack);
+                        if (!leaves.contains(top)) {
+                            // Otherwise each copy would work it out again,
+                            // and chained dups would double the work each time
+                            lets.add(top);
+                            top = leaf(leaves, scratch(lets.size() - 1));
+                        }
+                        stack.add(top);
+                        stack.add(top);
+                        break;
+                    case "swap":
+                        stack.add(stack.size() - 2, pop(stack));
+                        break;
+                    case "drop":
+                        pop(stack);
+                        break;
+                    default:
+                        try {
+                            stack.add(leaf(leaves, constant(Double.parseDouble(word))));
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("Unknown word [" + word + "] in [" + source + "]", ex);
+                        }
+                        break;
+                }
+            }
+        }
+
+        return new RpnProgram(source, in,
+                lets.toArray(new MethodHandle[lets.size()]),
+                stack.toArray(new MethodHandle[stack.size()]));
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return how many values the program takes from the stack
+     */
+    public int getIn() {
+        return in;
+    }
+
+    /**
+     * @return how many values the program leaves on the stack
+     */
+    public int getOut() {
+        return outputs.length;
+    }
+
+    /**
+     * Run the program.
+     *
+     * @param inputs values from the stack, top first. Must have at least
+     * getIn() entries
+     * @param results array to fill with results, bottom first. Must have at
+     * least getOut() entries
+     */
+    public void evaluate(double[] inputs, double[] results) {
+        evaluate(inputs, lets.length > 0 ? new double[lets.length] : null, results);
+    }
+
+    /**
+     * Run the program without allocating.
+     *
+     * @param inputs as for evaluate(double[], double[])
+     * @param scratch working space, with at least getScratchSize() entries
+     * @param results as for evaluate(double[], double[])
+     */
+    void evaluate(double[] inputs, double[] scratch, double[] results) {
+        try {
+            for (int i = 0; i < lets.length; i += 1) {
+                scratch[i] = (double) lets[i].invokeExact(inputs, scratch);
+            }
+            for (int i = 0; i < outputs.length; i += 1) {
+                results[i] = (double) outputs[i].invokeExact(inputs, scratch);
+            }
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new RuntimeException("Can't run [" + source + "]: " + ex.getMessage(), ex);
+        }
+    }
+
+    int getScratchSize() {
+        return lets.length;
+    }
+
+    @Override
+    public Command create(Stack stack) {
+        return new RpnCommand(stack, this);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static int nameIndex(String word) {
+        for (int i = 0; i < NAMES.length; i += 1) {
+            if (NAMES[i].equals(word)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static MethodHandle pop(List<MethodHandle> stack) {
+        return stack.remove(stack.size() - 1);
+    }
+
+    private static MethodHandle leaf(Set<MethodHandle> leaves, MethodHandle value) {
+        leaves.add(value);
+        return value;
+    }
+
+    private static MethodHandle input(int index) {
+        return MethodHandles.dropArguments(MethodHandles.insertArguments(INPUT, 1, index), 1, double[].class);
+    }
+
+    private static MethodHandle scratch(int index) {
+        return MethodHandles.dropArguments(MethodHandles.insertArguments(INPUT, 1, index), 0, double[].class);
+    }
+
+    private static MethodHandle constant(double value) {
+        return MethodHandles.dropArguments(MethodHandles.constant(double.class, value), 0, double[].class, double[].class);
+    }
+
+    private static double neg(double value) {
+        return -value;
+    }
+
+    private static double recip(double value) {
+        return 1 / value;
+    }
+
+    private static double add(double left, double right) {
+        return left + right;
+    }
+
+    private static double subtract(double left, double right) {
+        return left - right;
+    }
+
+    private static double multiply(double left, double right) {
+        return left * right;
+    }
+
+    private static double divide(double left, double right) {
+        return left / right;
+    }
+
+    private static final class RpnCommand implements Command {
+
+        private final Stack stack;
+        private final RpnProgram program;
+        private final double[] inputs;
+        private final double[] scratch;
+        private final double[] results;
+
+        RpnCommand(Stack stack, RpnProgram program) {
+            this.stack = stack;
+            this.program = program;
+            inputs = new double[program.getIn()];
+            scratch = new double[program.getScratchSize()];
+            results = new double[program.getOut()];
+        }
+
+        @Override
+        public void execute() {
+            for (int i = 0; i < inputs.length; i += 1) {
+                inputs[i] = stack.pop();
+            }
+            program.evaluate(inputs, scratch, results);
+            for (double result : results) {
+                stack.push(result);
+            }
+        }
+
+        @Override
+        public void undo() {
+            for (int i = 0; i < results.length; i += 1) {
+                stack.pop();
+            }
+            for (int i = inputs.length - 1; i >= 0; i -= 1) {
+                stack.push(inputs[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles button scripts, optionally using Nashorn's persistent code cache
+ * so that scripts compiled on a previous run are loaded from disk instead of
+ * being parsed and compiled again.
+ *
+ * Nashorn keys cached classes by a digest of the script source, inside a
+ * directory named for the Nashorn version. Editing a script in config.xml
+ * changes its digest, and upgrading the JVM changes the version directory, so
+ * stale entries are never used.
+ *
+ * A Nashorn global (and anything created in it) mustn't be used by two
+ * threads at once, but a compiled script can be run in any number of
+ * globals. So scripts are compiled once, and {@link #bind(CompiledScript)}
+ * runs them in a global belonging to the calling thread.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+final class ScriptCompiler {
+
+    static final String CACHE_DIR_PROPERTY = "nashorn.persistent.code.cache";
+
+    // Compilers built on different threads mustn't see each other's directory
+    private static final Object PROPERTY_LOCK = new Object();
+
+    // Nashorn won't cache a source shorter than this
+    private static final int MIN_CACHED_LENGTH = 1000;
+
+    // Each thread's own global for each engine whose scripts it runs
+    private static final ThreadLocal<Map<ScriptEngine, ScriptContext>> CONTEXTS = ThreadLocal.withInitial(WeakHashMap::new);
+
+    private final Logger log = LoggerFactory.getLogger(ScriptCompiler.class);
+    private final ScriptEngine engine;
+    private final boolean persistent;
+
+    /**
+     * Compiler with no disk cache.
+     */
+    ScriptCompiler() {
+        this(null);
+    }
+
+    /**
+     * Compiler using the given directory as a disk cache.
+     *
+     * Nashorn only takes the cache directory from a system property, which
+     * it reads while the engine is being built. The property is set just
+     * for that and put back afterwards, so nothing else in the JVM sees it.
+     *
+     * @param cacheDir directory to cache compiled scripts in, or null for no
+     * disk cache
+     */
+    ScriptCompiler(Path cacheDir) {
+        NashornScriptEngineFactory factory = new NashornScriptEngineFactory();
+        if (cacheDir != null) {
+            synchronized (PROPERTY_LOCK) {
+                String previous = System.getProperty(CACHE_DIR_PROPERTY);
+                System.setProperty(CACHE_DIR_PROPERTY, cacheDir.toString());
+                try {
+                    engine = factory.getScriptEngine("--persistent-code-cache");
+                } finally {
+                    if (previous != null) {
+                        System.setProperty(CACHE_DIR_PROPERTY, previous);
+                    } else {
+                        System.clearProperty(CACHE_DIR_PROPERTY);
+                    }
+                }
+            }
+            persistent = true;
+            log.debug("Script cache in {}", cacheDir);
+        } else {
+            engine = factory.getScriptEngine();
+            persistent = false;
+        }
+    }
+
+    static Path getDefaultCacheDir() {
+        return Paths.get(System.getProperty("user.home"), ".calculator", "script-cache");
+    }
+
+    ScriptEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Compile button code. Safe to share between threads, see
+     * {@link #bind(CompiledScript)}.
+     *
+     * @param code button code
+     * @return the compiled code
+     * @throws ScriptException if the code doesn't compile
+     */
+    CompiledScript compile(String code) throws ScriptException {
+        return ((Compilable) engine).compile(pad(code));
+    }
+
+    /**
+     * Run compiled button code in the calling thread's own global, returning
+     * the function it defines. Only use the function on this thread.
+     *
+     * @param script from {@link #compile(String)}, on any thread
+     * @return the button function
+     * @throws ScriptException if the code doesn't run
+     */
+    static JSObject bind(CompiledScript script) throws ScriptException {
+        ScriptContext context = CONTEXTS.get().computeIfAbsent(script.getEngine(), (ScriptEngine owner) -> {
+            SimpleScriptContext result = new SimpleScriptContext();
+            result.setBindings(owner.createBindings(), ScriptContext.ENGINE_SCOPE);
+            return result;
+        });
+        return (JSObject) script.eval(context);
+    }
+
+    private String pad(String code) {
+        if (!persistent || code.length() >= MIN_CACHED_LENGTH) {
+            return code;
+        }
+        // Trailing whitespace doesn't change the meaning of the script, but
+        // it does get it over Nashorn's size threshold for caching.
+        StringBuilder result = new StringBuilder(MIN_CACHED_LENGTH);
+        result.append(code);
+        while (result.length() < MIN_CACHED_LENGTH) {
+            result.append(' ');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Overflow storage for the oldest undo history, kept as a stack of records
+ * in append-only segment files.
+ *
+ * Each record is the encoded command followed by its length, so the newest
+ * record can be found by reading backwards from the end of the last segment.
+ * Popping a record truncates it off the end, and deletes the segment once it
+ * is empty.
+ *
+ * Pushed commands wait in memory until there's a batch of them, which is
+ * then written with a single call, so most pushes (and the pops that undo
+ * them) don't touch the disk at all. Nothing is created on disk until the
+ * first batch is written. Spills that weren't given a directory share one
+ * temporary directory per JVM.
+ *
+ * Records can also be read forwards, oldest first, for saving the whole
+ * history somewhere else, since each one starts where the last ended.
+ *
+ * @author Osric Wilkinson <osric@fluffypeople.com>
+ */
+final class SegmentSpill {
+
+    /**
+     * Turns commands into bytes and back again.
+     */
+    interface Codec {
+
+        /**
+         * @param c
+         * @param out
+         * @throws IOException
+         * @throws IllegalArgumentException if the command can't be encoded
+         */
+        void write(Command c, DataOutput out) throws IOException;
+
+        Command read(DataInput in) throws IOException;
+    }
+
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    static final int DEFAULT_BATCH_SIZE = 256;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static Path sharedDir;
+
+    private final Logger log = LoggerFactory.getLogger(SegmentSpill.class);
+    private final Codec codec;
+    private final int segmentSize;
+    private final int batchSize;
+    private Command[] pending;
+    private int pendingCount;
+    private Buffer buffer;
+    private DataOutputStream bufferOut;
+    private Path dir;
+    private FileChannel channel;
+    private int segment;
+    private long count;
+
+    /**
+     * @param dir directory for segment files, or null to use a temporary
+     * directory created on first use
+     * @param codec
+     */
+    SegmentSpill(Path dir, Codec codec) {
+        this(dir, codec, DEFAULT_SEGMENT_SIZE, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param dir
+     * @param codec
+     * @param segmentSize start a new segment file once the current one is
+     * this many bytes long
+     * @param batchSize number of commands to keep in memory before writing
+     * them out
+     */
+    SegmentSpill(Path dir, Codec codec, int segmentSize, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least one");
+        }
+        this.dir = dir;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.batchSize = batchSize;
+        segment = -1;
+        count = 0;
+    }
+
+    long size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Add a command to the top of the spill.
+     *
+     * @param c
+     * @throws IOException
+     * @throws IllegalArgumentException if the codec can't encode the command
+     */
+    void push(Command c) throws IOException {
+        if (pending == null) {
+            pending = new Command[batchSize];
+        } else if (pendingCount == pending.length) {
+            flush();
+        }
+        pending[pendingCount] = c;
+        pendingCount += 1;
+        count += 1;
+    }
+
+    /**
+     * Write out the waiting commands, oldest first, in one go. A batch never
+     * spans segments.
+     */
+    private void flush() throws IOException {
+        if (buffer == null) {
+            buffer = new Buffer();
+            bufferOut = new DataOutputStream(buffer);
+        }
+        buffer.reset();
+        for (int i = 0; i < pendingCount; i += 1) {
+            int mark = buffer.size();
+            codec.write(pending[i], bufferOut);
+            bufferOut.writeInt(buffer.size() - mark);
+        }
+
+        if (channel == null || channel.size() >= segmentSize) {
+            openSegment(segment + 1);
+        }
+
+        ByteBuffer bytes = buffer.asByteBuffer();
+        channel.position(channel.size());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+
+        for (int i = 0; i < pendingCount; i += 1) {
+            pending[i] = null;
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Remove and return the command at the top of the spill.
+     *
+     * @return
+     * @throws IOException
+     * @throws IllegalStateException if the spill is empty
+     */
+    Command pop() throws IOException {
+        if (count == 0) {
+            throw new IllegalStateException("Spill is empty");
+        }
+        if (pendingCount > 0) {
+            pendingCount -= 1;
+            Command c = pending[pendingCount];
+            pending[pendingCount] = null;
+            count -= 1;
+            return c;
+        }
+        while (channel.size() == 0) {
+            closeSegment(true);
+            openSegment(segment - 1);
+        }
+
+        long end = channel.size();
+        ByteBuffer lengthBytes = ByteBuffer.allocate(Integer.BYTES);
+        readFully(lengthBytes, end - Integer.BYTES);
+        int length = lengthBytes.getInt(0);
+
+        long start = end - Integer.BYTES - length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        readFully(record, start);
+
+        Command c = codec.read(new DataInputStream(new ByteArrayInputStream(record.array())));
+        channel.truncate(start);
+        count -= 1;
+        return c;
+    }
+
+    /**
+     * Start reading the spill from the oldest command, without removing
+     * anything. The spill mustn't change until the reader is closed.
+     *
+     * @return the reader
+     */
+    Reader read() {
+        return new Reader();
+    }
+
+    /**
+     * Throw everything away, and delete the segment files.
+     */
+    void clear() {
+        try {
+            while (segment >= 0) {
+                if (channel == null) {
+                    openSegment(segment);
+                }
+                closeSegment(true);
+                segment -= 1;
+            }
+        } catch (IOException ex) {
+            log.warn("Can't delete history segments in {}", dir, ex);
+        }
+        channel = null;
+        segment = -1;
+        count = 0;
+        if (pending != null) {
+            for (int i = 0; i < pendingCount; i += 1) {
+                pending[i] = null;
+            }
+        }
+        pendingCount = 0;
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IOException("Unexpected end of segment " + segment);
+            }
+        }
+    }
+
+    private Path segmentPath(int index) {
+        return dir.resolve(String.format("segment-%08d", index));
+    }
+
+    private void openSegment(int index) throws IOException {
+        if (dir == null) {
+            dir = Files.createTempDirectory(getSharedDir(), "spill");
+            dir.toFile().deleteOnExit();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        segment = index;
+        Path path = segmentPath(index);
+        path.toFile().deleteOnExit();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static synchronized Path getSharedDir() throws IOException {
+        if (sharedDir == null) {
+            sharedDir = Files.createTempDirectory("calculator-history");
+            // Registered first, so deleted after everything inside it
+            sharedDir.toFile().deleteOnExit();
+        }
+        return sharedDir;
+    }
+
+    private void closeSegment(boolean delete) throws IOException {
+        channel.close();
+        channel = null;
+        if (delete) {
+            Files.deleteIfExists(segmentPath(segment));
+        }
+    }
+
+    /**
+     * Reads each segment from the start, then the commands that haven't
+     * been written out yet.
+     */
+    final class Reader implements Closeable {
+
+        private int nextSegment = 0;
+        private int nextPending = 0;
+        private DataInputStream in;
+        // Bytes left in the segment that's being read
+        private long unread;
+
+        /**
+         * @return the next command, or null once they've all been read
+         * @throws IOException
+         */
+        Command next() throws IOException {
+            while (in == null || unread == 0) {
+                close();
+                if (nextSegment > segment) {
+                    return nextPending < pendingCount ? pending[nextPending++] : null;
+                }
+                FileChannel file = FileChannel.open(segmentPath(nextSegment), StandardOpenOption.READ);
+                nextSegment += 1;
+                unread = file.size();
+                in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file), READ_BUFFER_SIZE));
+            }
+            Command c = codec.read(in);
+            unread -= in.readInt() + Integer.BYTES;
+            return c;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Lets the encoded batch be written without copying it.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
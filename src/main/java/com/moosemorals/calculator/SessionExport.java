@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import com.moosemorals.calculator.xml.SessionParser;
+import com.moosemorals.calculator.xml.XML;
+import com.moosemorals.calculator.xml.XMLable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Base64;
+import javax.xml.stream.XMLStreamException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the stack, display and undo history of an Engine, either as XML or
+ * in a compact binary form, and loads them back.
+ *
+ * Both forms are streamed: the stack is read a chunk at a time from the
+ * bottom up and written straight to the channel, and loading pushes each
+ * entry as it's read, so a stack with millions of entries never needs a
+ * second copy in memory. History goes the same way, one command at a time
+ * from the oldest, spilled commands included. Each command is saved the
+ * way the engine spills it to disk (in base 64, for XML). Loading history
+ * doesn't run anything, and any commands waiting to be redone that don't
+ * fit in memory are dropped.
+ *
+ * Export and load on the thread that drives the engine.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class SessionExport implements XMLable {
+
+    static final int MAGIC = 0x43414c53; // "CALS"
+    static final int VERSION = 2;
+    // Before history was saved
+    private static final int VERSION_NO_HISTORY = 1;
+
+    private static final int CHUNK = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(SessionExport.class);
+    private final Engine engine;
+
+    public SessionExport(Engine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public void toXML(XML xml) throws XMLStreamException {
+        xml.start("session", "version", Integer.toString(VERSION));
+        if (engine.hasDisplayValue()) {
+            xml.add("display", engine.getDisplayString());
+        }
+
+        int depth = engine.getDepth();
+        xml.start("stack", "depth", Integer.toString(depth));
+        double[] values = new double[CHUNK];
+        Object[] extras = new Object[CHUNK];
+        for (int start = 0; start < depth; start += CHUNK) {
+            // copyTo counts from the top, so read each chunk top first and
+            // write it backwards
+            int size = Math.min(CHUNK, depth - start);
+            int count = engine.copyTo(depth - start - size, size, values, extras);
+            for (int i = count - 1; i >= 0; i -= 1) {
+                Object extra = extras[i];
+                if (extra instanceof double[]) {
+                    double[] column = (double[]) extra;
+                    xml.start("column", "size", Integer.toString(column.length));
+                    for (double v : column) {
+                        xml.add("value", v);
+                    }
+                    xml.end();
+                } else if (extra instanceof BigDecimal) {
+                    xml.add("exact", extra.toString());
+                } else {
+                    xml.add("value", values[i]);
+                }
+            }
+        }
+        xml.end();
+
+        long oldest = engine.getOldestHistoryIndex();
+        long size = engine.getHistorySize();
+        if (size > oldest) {
+            xml.start("history",
+                    "oldest", Long.toString(oldest),
+                    "position", Long.toString(engine.getHistoryIndex()),
+                    "size", Long.toString(size - oldest));
+            Base64.Encoder base64 = Base64.getEncoder();
+            try (Engine.HistoryReader history = engine.readHistory()) {
+                byte[] record;
+                while ((record = history.next()) != null) {
+                    xml.add("command", base64.encodeToString(record));
+                }
+            } catch (IOException ex) {
+                throw new XMLStreamException("Can't read history: " + ex.getMessage(), ex);
+            }
+            xml.end();
+        }
+
+        xml.end();
+    }
+
+    /**
+     * Write the session as an XML document.
+     *
+     * @param out left open
+     * @throws XMLStreamException
+     */
+    public void writeXml(WritableByteChannel out) throws XMLStreamException {
+        try (XML xml = new XML(out)) {
+            xml.add(this);
+            xml.endDocument();
+        }
+        log.debug("Exported {} stack entries as XML", engine.getDepth());
+    }
+
+    /**
+     * Replace the stack and display of an engine with a session from
+     * {@link #writeXml(WritableByteChannel)}.
+     *
+     * @param in
+     * @param engine
+     * @return the number of stack entries loaded
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public static int readXml(ReadableByteChannel in, Engine engine) throws IOException, XMLStreamException {
+        return new SessionParser(engine).parse(in);
+    }
+
+    /**
+     * Write the session in binary. After a header (magic, version) comes the
+     * display text, if any, then the stack depth and each entry from the
+     * bottom up, tagged the same way as the journal tags stack values. Last
+     * comes the history: where it starts, the current position and the
+     * number of commands, then each command as a length and its bytes.
+     *
+     * @param out left open
+     * @throws IOException
+     */
+    public void write(WritableByteChannel out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), BUFFER_SIZE));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeBoolean(engine.hasDisplayValue());
+        if (engine.hasDisplayValue()) {
+            data.writeUTF(engine.getDisplayString());
+        }
+
+        int depth = engine.getDepth();
+        data.writeInt(depth);
+        double[] values = new double[CHUNK];
+        Object[] extras = new Object[CHUNK];
+        for (int start = 0; start < depth; start += CHUNK) {
+            int size = Math.min(CHUNK, depth - start);
+            int count = engine.copyTo(depth - start - size, size, values, extras);
+            for (int i = count - 1; i >= 0; i -= 1) {
+                Engine.writeExtra(extras[i], data);
+                if (extras[i] == null) {
+                    data.writeDouble(values[i]);
+                }
+            }
+        }
+
+        long oldest = engine.getOldestHistoryIndex();
+        data.writeLong(oldest);
+        data.writeLong(engine.getHistoryIndex());
+        data.writeLong(engine.getHistorySize() - oldest);
+        try (Engine.HistoryReader history = engine.readHistory()) {
+            byte[] record;
+            while ((record = history.next()) != null) {
+                data.writeInt(record.length);
+                data.write(record);
+            }
+        }
+        data.flush();
+        log.debug("Exported {} stack entries and {} commands", depth, engine.getHistorySize() - oldest);
+    }
+
+    /**
+     * Replace the stack and display of an engine with a session from
+     * {@link #write(WritableByteChannel)}.
+     *
+     * @param in
+     * @param engine
+     * @return the number of stack entries loaded
+     * @throws IOException if the data isn't a session, or is cut short or
+     * otherwise broken. The engine is left empty.
+     */
+    public static int read(ReadableByteChannel in, Engine engine) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in), BUFFER_SIZE));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a saved session");
+        }
+        int version = data.readInt();
+        if (version != VERSION && version != VERSION_NO_HISTORY) {
+            throw new IOException("Unknown session version " + version);
+        }
+        String text = data.readBoolean() ? data.readUTF() : null;
+        int depth = data.readInt();
+        if (depth < 0) {
+            throw new IOException("Bad stack depth " + depth);
+        }
+
+        Engine.Loader loader = engine.load();
+        try {
+            for (int i = 0; i < depth; i += 1) {
+                Object extra = Engine.readExtra(data);
+                if (extra instanceof double[]) {
+                    loader.pushColumn((double[]) extra);
+                } else if (extra instanceof BigDecimal) {
+                    loader.pushExact((BigDecimal) extra);
+                } else {
+                    loader.push(data.readDouble());
+                }
+            }
+            if (text != null) {
+                loader.setDisplay(text);
+            }
+            if (version != VERSION_NO_HISTORY) {
+                readHistory(data, loader);
+            }
+        } catch (IOException ex) {
+            engine.load().finish();
+            throw ex;
+        } catch (RuntimeException ex) {
+            // Anything else that slipped past the checks, like a bad
+            // display or a column too big to be real
+            engine.load().finish();
+            throw new IOException("Bad session data: " + ex.getMessage(), ex);
+        }
+        loader.finish();
+        return depth;
+    }
+
+    private static void readHistory(DataInputStream data, Engine.Loader loader) throws IOException {
+        long oldest = data.readLong();
+        long position = data.readLong();
+        long count = data.readLong();
+        if (count < 0) {
+            throw new IOException("Bad history size " + count);
+        }
+        loader.startHistory(oldest, position);
+        byte[] record = new byte[0];
+        for (long i = 0; i < count; i += 1) {
+            int length = data.readInt();
+            if (length < 0) {
+                throw new IOException("Bad history record length " + length);
+            }
+            if (record.length != length) {
+                record = new byte[length];
+            }
+            data.readFully(record);
+            loader.addHistory(record);
+        }
+    }
+}
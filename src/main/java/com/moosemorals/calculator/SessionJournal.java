@@ -0,0 +1,843 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead log of everything an Engine does, so a session survives the
+ * process going away.
+ *
+ * The engine's thread only puts records on a queue. A writer thread takes
+ * whatever has built up, appends it all to a memory mapped log file and
+ * forces it to disk once for the lot. The writer also runs every record on
+ * a copy of the engine of its own, and every so often writes a snapshot of
+ * that copy's stack and display to its own file before the log behind it is
+ * cleared, so replaying on startup means loading the snapshot and running
+ * the few records since. The engine's thread never has to copy its stack.
+ *
+ * Log records are framed as a length followed by a tag and the body. The
+ * length goes in last, and the rest of the file is zeros, so a record that
+ * was only half written when the process died just looks like the end of
+ * the log.
+ *
+ * Undo, redo and jumps through the history are journalled as the position
+ * they end up at. Replay rebuilds the history from the snapshot on, so it
+ * can get to any position from the snapshot to the newest command. Undoing
+ * past the start of that, or redoing past the end, journals the command
+ * too, and replay adds it to the history.
+ *
+ * Commands are journalled by opcode, which only means something with the
+ * buttons they were pressed on, so the log and snapshot both carry a
+ * checksum of the config. If the config has changed by the time the session
+ * is replayed, only the snapshot is replayed.
+ *
+ * A journal that can't be read is kept, with .bad on the end of its file
+ * names, and a new one started in its place.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class SessionJournal implements Closeable {
+
+    static final int DEFAULT_SNAPSHOT_INTERVAL = 4096;
+
+    private static final int MAGIC = 0x43414c4a;
+    private static final int VERSION = 3;
+    private static final String LOG_FILE = "session.log";
+    private static final String SNAPSHOT_FILE = "session.snapshot";
+    private static final String BAD_SUFFIX = ".bad";
+    // Magic, version, the sequence number of the first record and the
+    // config checksum
+    private static final int HEADER_SIZE = 24;
+    private static final int INITIAL_LOG_SIZE = 1 << 20;
+
+    // Record tags
+    private static final byte TAG_COMMAND = 1;
+    private static final byte TAG_PUSH = 2;
+    private static final byte TAG_COLUMN = 3;
+    private static final byte TAG_BATCH = 4;
+    private static final byte TAG_RESET = 5;
+    private static final byte TAG_JUMP = 6;
+    private static final byte TAG_UNDO = 7;
+    private static final byte TAG_REDO = 8;
+    // Only ever on the queue
+    private static final byte TAG_SNAPSHOT = 100;
+    private static final byte TAG_CLOSE = 101;
+    private static final byte TAG_CONFIG = 102;
+    private static final byte TAG_START = 103;
+
+    private static final Logger log = LoggerFactory.getLogger(SessionJournal.class);
+
+    private final Path dir;
+    private final int snapshotInterval;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writer;
+    private final AtomicLong queued;
+    private final Object flushLock;
+
+    // Read when the journal was opened, for replay
+    private Engine.State snapshot;
+    private List<Entry> tail;
+    private long tailChecksum;
+
+    // Engine thread
+    private Engine engine;
+    private int sinceSnapshot;
+    private boolean closed;
+    // Replay can get to any position from floor to ceiling without being
+    // told what the commands in between were
+    private long floor;
+    private long ceiling;
+    // Fewest commands any of the engines replaying the journal keep in
+    // memory, which is how many they can be relied on to keep
+    private int depth;
+
+    // Writer thread
+    private final ByteArrayOutputStream buffer;
+    private final DataOutputStream bufferOut;
+    private MappedByteBuffer map;
+    private int position;
+    private long base;
+    private long count;
+    private long configChecksum;
+    // Runs everything that's journalled, for snapshots
+    private Engine replica;
+
+    // Guarded by flushLock
+    private long written;
+    private boolean failed;
+
+    /**
+     * Open the journal in a directory, creating it if needed, and read what's
+     * there ready for {@link #replay(Engine)}.
+     *
+     * @param dir
+     * @return the journal
+     * @throws IOException if the journal can't be read, or another process
+     * has it open
+     */
+    public static SessionJournal open(Path dir) throws IOException {
+        return new SessionJournal(dir, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    public static Path getDefaultDir() {
+        return Paths.get(System.getProperty("user.home"), ".calculator", "session");
+    }
+
+    /**
+     * Move a closed journal that couldn't be replayed out of the way, so
+     * the next one opened in dir starts empty.
+     *
+     * @param dir
+     * @throws IOException
+     */
+    public static void moveAside(Path dir) throws IOException {
+        for (String name : new String[]{LOG_FILE, SNAPSHOT_FILE}) {
+            Path file = dir.resolve(name);
+            if (Files.exists(file)) {
+                Files.move(file, dir.resolve(name + BAD_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    SessionJournal(Path dir, int snapshotInterval) throws IOException {
+        this.dir = dir;
+        this.snapshotInterval = snapshotInterval;
+        Files.createDirectories(dir);
+
+        channel = FileChannel.open(dir.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Session journal in " + dir + " is in use");
+        }
+
+        buffer = new ByteArrayOutputStream();
+        bufferOut = new DataOutputStream(buffer);
+        queue = new LinkedBlockingQueue<>();
+        queued = new AtomicLong();
+        flushLock = new Object();
+        tail = new ArrayList<>();
+
+        try {
+            try {
+                load();
+            } catch (IOException ex) {
+                log.warn("Can't read session journal in {}, starting a new one: {}", dir, ex.getMessage());
+                discard();
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        writer = new Thread(this::writeLoop, "Session journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Put the engine back how it was when the journal was last written to,
+     * and journal everything it does from now on. Call from the thread that
+     * drives the engine, before anything else happens to it.
+     *
+     * @param engine
+     */
+    public void replay(Engine engine) {
+        long start = System.nanoTime();
+        long checksum = ConfigSnapshot.checksum(engine.getConfig());
+        boolean sameConfig = checksum == tailChecksum;
+        boolean compact = !tail.isEmpty() || !sameConfig;
+        if (!sameConfig && !tail.isEmpty()) {
+            log.info("Buttons have changed since the session was journalled, only replaying the snapshot");
+            tail.clear();
+        }
+
+        if (snapshot != null) {
+            engine.restoreState(snapshot);
+        }
+        for (Entry e : tail) {
+            e.apply(engine);
+        }
+        log.info("Replayed session journal ({} records after snapshot) in {}ms",
+                tail.size(), (System.nanoTime() - start) / 1000000);
+
+        // The writer's copy starts from the same place
+        offer(new Entry(TAG_START, 0, 0, new Start(engine.getLibrary(), snapshot, tail)));
+        snapshot = null;
+        tail = null;
+
+        this.engine = engine;
+        depth = engine.getHistoryDepth();
+        floor = engine.getHistoryIndex();
+        ceiling = floor;
+        engine.setJournal(this);
+        config(engine.getLibrary());
+        if (compact) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Journal commands against a different set of buttons from now on. Has
+     * to be followed by a snapshot, so the log doesn't mix the two.
+     *
+     * @param library
+     */
+    void config(ButtonLibrary library) {
+        depth = Math.min(depth, library.getConfig().getHistoryDepth());
+        offer(new Entry(TAG_CONFIG, 0, 0, library));
+    }
+
+    void command(int opcode) {
+        addToHistory(new Entry(TAG_COMMAND, opcode, 0, null));
+    }
+
+    void push(double value) {
+        addToHistory(new Entry(TAG_PUSH, 0, value, null));
+    }
+
+    /**
+     * @param column values, which mustn't change afterwards
+     */
+    void pushColumn(double[] column) {
+        addToHistory(new Entry(TAG_COLUMN, 0, 0, column));
+    }
+
+    void batch(Batch batch) {
+        // The caller is free to reuse the batch
+        addToHistory(new Entry(TAG_BATCH, 0, 0, new Batch().append(batch)));
+    }
+
+    void reset() {
+        add(new Entry(TAG_RESET, 0, 0, null));
+        floor = engine.getHistoryIndex();
+        ceiling = floor;
+    }
+
+    /**
+     * @param position where the engine is in its history after the undo
+     * @param undone the command that was undone
+     */
+    void undo(long position, Command undone) {
+        if (position >= floor) {
+            add(new Entry(TAG_JUMP, position));
+        } else {
+            add(new Entry(TAG_UNDO, 0, 0, engine.encode(undone)));
+            floor = position;
+        }
+        moved(position);
+    }
+
+    /**
+     * @param position where the engine is in its history after the redo
+     * @param redone the command that was redone
+     */
+    void redo(long position, Command redone) {
+        if (position <= ceiling) {
+            add(new Entry(TAG_JUMP, position));
+        } else {
+            add(new Entry(TAG_REDO, 0, 0, engine.encode(redone)));
+            ceiling = position;
+        }
+        moved(position);
+    }
+
+    /**
+     * @param position where the engine is in its history after the jump,
+     * from {@link #getFloor()} to {@link #getCeiling()}
+     */
+    void jump(long position) {
+        add(new Entry(TAG_JUMP, position));
+        moved(position);
+    }
+
+    /**
+     * @return earliest position in the history that can be journalled as a
+     * jump
+     */
+    long getFloor() {
+        return floor;
+    }
+
+    /**
+     * @return latest position in the history that can be journalled as a
+     * jump
+     */
+    long getCeiling() {
+        return ceiling;
+    }
+
+    /**
+     * @return true if enough has been journalled since the last snapshot that
+     * it's time for another one
+     */
+    boolean wantsSnapshot() {
+        return sinceSnapshot >= snapshotInterval;
+    }
+
+    /**
+     * Have the writer record the state of the engine, so the log up to here
+     * can be thrown away.
+     */
+    void snapshot() {
+        snapshot(null);
+    }
+
+    /**
+     * Record a state the engine was put in without going through the
+     * journal, such as a loaded session.
+     *
+     * @param state the state, or null to take it from the writer's copy of
+     * the engine
+     */
+    void snapshot(Engine.State state) {
+        sinceSnapshot = 0;
+        floor = engine.getHistoryIndex();
+        ceiling = floor;
+        offer(new Entry(TAG_SNAPSHOT, 0, 0, state));
+    }
+
+    /**
+     * Wait until everything journalled so far is on disk.
+     *
+     * @throws IOException if the writer has given up
+     */
+    public void flush() throws IOException {
+        long target = queued.get();
+        synchronized (flushLock) {
+            while (written < target && !failed) {
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for session journal", ex);
+                }
+            }
+            if (failed) {
+                throw new IOException("Session journal writer has stopped");
+            }
+        }
+    }
+
+    /**
+     * Write out anything outstanding and release the journal.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        offer(new Entry(TAG_CLOSE, 0, 0, null));
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void add(Entry e) {
+        sinceSnapshot += 1;
+        offer(e);
+    }
+
+    /**
+     * Journal something that adds to the history, and throws away anything
+     * waiting to be redone.
+     */
+    private void addToHistory(Entry e) {
+        add(e);
+        // Clear starts the history again from nothing
+        floor = Math.min(floor, engine.getHistoryIndex());
+        ceiling = engine.getHistoryIndex();
+    }
+
+    /**
+     * Going back in the history can push commands waiting to be redone out
+     * of memory, so only count on the ones that are bound to be left.
+     */
+    private void moved(long position) {
+        ceiling = Math.min(ceiling, position + depth);
+    }
+
+    private void offer(Entry e) {
+        if (closed && e.tag != TAG_CLOSE) {
+            return;
+        }
+        queued.incrementAndGet();
+        queue.offer(e);
+    }
+
+    private void load() throws IOException {
+        long snapshotSequence = 0;
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(snapshotFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a session snapshot: " + snapshotFile);
+            }
+            snapshotSequence = in.readLong();
+            configChecksum = in.readLong();
+            snapshot = Engine.State.read(in);
+        }
+
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_LOG_SIZE));
+        if (map.getInt(0) != MAGIC) {
+            // New (or unreadable) log
+            startLog(snapshotSequence);
+            tailChecksum = configChecksum;
+            return;
+        } else if (map.getInt(4) != VERSION) {
+            throw new IOException("Session log has unknown version " + map.getInt(4));
+        }
+
+        base = map.getLong(8);
+        tailChecksum = map.getLong(16);
+        position = HEADER_SIZE;
+        count = 0;
+        byte[] record = new byte[256];
+        while (position + 4 <= map.capacity()) {
+            int length = map.getInt(position);
+            if (length <= 0 || position + 4 + length > map.capacity()) {
+                break;
+            }
+            if (record.length < length) {
+                record = new byte[length];
+            }
+            map.position(position + 4);
+            map.get(record, 0, length);
+            Entry e = read(new DataInputStream(new ByteArrayInputStream(record, 0, length)));
+            if (base + count >= snapshotSequence) {
+                tail.add(e);
+            }
+            position += 4 + length;
+            count += 1;
+        }
+
+        if (base + count < snapshotSequence) {
+            // The log is from before the snapshot, which means it was
+            // being cleared when things stopped
+            startLog(snapshotSequence);
+            tailChecksum = configChecksum;
+        }
+    }
+
+    /**
+     * Keep a copy of a journal that couldn't be loaded and start again with
+     * an empty one, without letting go of the lock.
+     */
+    private void discard() throws IOException {
+        try (FileChannel out = FileChannel.open(dir.resolve(LOG_FILE + BAD_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long copied = 0;
+            while (copied < channel.size()) {
+                copied += channel.transferTo(copied, channel.size() - copied, out);
+            }
+        }
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            Files.move(snapshotFile, dir.resolve(SNAPSHOT_FILE + BAD_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        snapshot = null;
+        tail.clear();
+        configChecksum = 0;
+        tailChecksum = 0;
+        if (map == null) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_LOG_SIZE));
+        }
+        // All of it, not just as far as loading got
+        position = map.capacity();
+        startLog(0);
+    }
+
+    /**
+     * Empty the log, so the next record written is numbered sequence.
+     */
+    private void startLog(long sequence) {
+        int end = Math.max(position, HEADER_SIZE);
+        for (int i = HEADER_SIZE; i < end; i += 1) {
+            map.put(i, (byte) 0);
+        }
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putLong(8, sequence);
+        map.putLong(16, configChecksum);
+        base = sequence;
+        count = 0;
+        position = HEADER_SIZE;
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        boolean running = true;
+        try {
+            while (running) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Entry e : batch) {
+                    if (e.tag == TAG_CLOSE) {
+                        running = false;
+                    } else if (e.tag == TAG_START) {
+                        startReplica((Start) e.payload);
+                    } else if (e.tag == TAG_CONFIG) {
+                        ButtonLibrary library = (ButtonLibrary) e.payload;
+                        configChecksum = ConfigSnapshot.checksum(library.getConfig());
+                        if (replica != null) {
+                            replica.setLibrary(library);
+                        }
+                    } else if (e.tag == TAG_SNAPSHOT) {
+                        writeSnapshot((Engine.State) e.payload);
+                    } else {
+                        append(e);
+                        if (replica != null) {
+                            e.apply(replica);
+                        }
+                    }
+                }
+                // One trip to the disk for everything that queued up while
+                // the last one was happening
+                map.force();
+                synchronized (flushLock) {
+                    written += batch.size();
+                    flushLock.notifyAll();
+                }
+                batch.clear();
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.error("Session journal failed, the rest of this session won't be saved", ex);
+            synchronized (flushLock) {
+                failed = true;
+                flushLock.notifyAll();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (replica != null) {
+                replica.close();
+            }
+        }
+    }
+
+    private void startReplica(Start start) {
+        replica = new Engine(start.library);
+        // Buttons change when the log says they did, not when the live
+        // engine gets round to it
+        replica.setFollowLibrary(false);
+        replica.setLogSteps(false);
+        if (start.snapshot != null) {
+            replica.restoreState(start.snapshot);
+        }
+        for (Entry e : start.tail) {
+            e.apply(replica);
+        }
+    }
+
+    private void append(Entry e) throws IOException {
+        buffer.reset();
+        e.write(bufferOut);
+        bufferOut.flush();
+        int length = buffer.size();
+
+        // Always leave a zero length after the last record
+        if (position + 4 + length + 4 > map.capacity()) {
+            long size = map.capacity();
+            while (position + 4 + length + 4 > size) {
+                size *= 2;
+            }
+            map.force();
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        map.position(position + 4);
+        map.put(buffer.toByteArray(), 0, length);
+        map.putInt(position, length);
+        position += 4 + length;
+        count += 1;
+    }
+
+    private void writeSnapshot(Engine.State given) throws IOException {
+        Engine.State state;
+        if (given != null) {
+            state = given;
+            if (replica != null) {
+                replica.restoreState(given);
+            }
+        } else if (replica != null) {
+            state = replica.captureState();
+        } else {
+            // Not replaying yet, so there's nothing new to save
+            return;
+        }
+        long sequence = base + count;
+
+        buffer.reset();
+        bufferOut.writeInt(MAGIC);
+        bufferOut.writeInt(VERSION);
+        bufferOut.writeLong(sequence);
+        bufferOut.writeLong(configChecksum);
+        state.write(bufferOut);
+        bufferOut.flush();
+
+        Path temp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(true);
+        }
+        Files.move(temp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        startLog(sequence);
+        log.debug("Session snapshot at record {}", sequence);
+    }
+
+    private static Entry read(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_COMMAND:
+                return new Entry(tag, in.readInt(), 0, null);
+            case TAG_PUSH:
+                return new Entry(tag, 0, in.readDouble(), null);
+            case TAG_COLUMN:
+                return new Entry(tag, 0, 0, Engine.readValues(in));
+            case TAG_BATCH:
+                Batch batch = new Batch();
+                int size = in.readInt();
+                for (int i = 0; i < size; i += 1) {
+                    int opcode = in.readInt();
+                    double value = in.readDouble();
+                    if (opcode == Batch.PUSH) {
+                        batch.push(value);
+                    } else {
+                        batch.command(opcode);
+                    }
+                }
+                return new Entry(tag, 0, 0, batch);
+            case TAG_RESET:
+                return new Entry(tag, 0, 0, null);
+            case TAG_JUMP:
+                return new Entry(tag, in.readLong());
+            case TAG_UNDO:
+            case TAG_REDO:
+                byte[] record = new byte[in.readInt()];
+                in.readFully(record);
+                return new Entry(tag, 0, 0, record);
+            default:
+                throw new IOException("Unknown session journal tag " + tag);
+        }
+    }
+
+    /**
+     * Where the writer's copy of the engine starts from.
+     */
+    private static final class Start {
+
+        private final ButtonLibrary library;
+        private final Engine.State snapshot;
+        private final List<Entry> tail;
+
+        Start(ButtonLibrary library, Engine.State snapshot, List<Entry> tail) {
+            this.library = library;
+            this.snapshot = snapshot;
+            this.tail = tail;
+        }
+    }
+
+    /**
+     * One thing the engine did.
+     */
+    private static final class Entry {
+
+        private final byte tag;
+        private final int opcode;
+        private final double value;
+        private final long position;
+        private final Object payload;
+
+        Entry(byte tag, int opcode, double value, Object payload) {
+            this.tag = tag;
+            this.opcode = opcode;
+            this.value = value;
+            this.position = 0;
+            this.payload = payload;
+        }
+
+        Entry(byte tag, long position) {
+            this.tag = tag;
+            this.opcode = 0;
+            this.value = 0;
+            this.position = position;
+            this.payload = null;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeByte(tag);
+            switch (tag) {
+                case TAG_COMMAND:
+                    out.writeInt(opcode);
+                    break;
+                case TAG_PUSH:
+                    out.writeDouble(value);
+                    break;
+                case TAG_COLUMN:
+                    Engine.writeValues((double[]) payload, out);
+                    break;
+                case TAG_BATCH:
+                    Batch batch = (Batch) payload;
+                    out.writeInt(batch.size());
+                    for (int i = 0; i < batch.size(); i += 1) {
+                        out.writeInt(batch.getOpcode(i));
+                        out.writeDouble(batch.getValue(i));
+                    }
+                    break;
+                case TAG_RESET:
+                    break;
+                case TAG_JUMP:
+                    out.writeLong(position);
+                    break;
+                case TAG_UNDO:
+                case TAG_REDO:
+                    byte[] record = (byte[]) payload;
+                    out.writeInt(record.length);
+                    out.write(record);
+                    break;
+                default:
+                    throw new IllegalStateException("Can't write tag " + tag);
+            }
+        }
+
+        void apply(Engine engine) {
+            switch (tag) {
+                case TAG_COMMAND:
+                    engine.command(opcode);
+                    break;
+                case TAG_PUSH:
+                    engine.push(value);
+                    break;
+                case TAG_COLUMN:
+                    engine.pushColumn((double[]) payload);
+                    break;
+                case TAG_BATCH:
+                    engine.executeBatch((Batch) payload);
+                    break;
+                case TAG_RESET:
+                    engine.reset();
+                    break;
+                case TAG_JUMP:
+                    engine.replayJump(position);
+                    break;
+                case TAG_UNDO:
+                    try {
+                        engine.replayUndo((byte[]) payload);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    break;
+                case TAG_REDO:
+                    try {
+                        engine.replayRedo((byte[]) payload);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Can't replay tag " + tag);
+            }
+        }
+    }
+}
@@ -23,75 +23,404 @@
  */
 package com.moosemorals.calculator;
 
-import java.util.LinkedList;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Stack of primitive doubles, backed by a growable array.
+ *
+ * Index zero (for {@link #peek(int)} and {@link #copyTo(int, int, double[])})
+ * is the top of the stack.
+ *
+ * A slot can also hold a column of values (see {@link #pushColumn(double[])})
+ * or, in precision mode, an exact BigDecimal (see
+ * {@link #pushExact(BigDecimal)}). Code that only knows about doubles sees a
+ * column as NaN and an exact value as the nearest double. Columns are never
+ * changed once they're on the stack, so they can be shared between slots and
+ * kept for undo without copying.
  *
  * @author Osric Wilkinson <osric@fluffypeople.com>
  */
 public final class Stack {
 
+    /**
+     * Gets told about every value that goes on or comes off the stack.
+     */
+    public interface Recorder {
+
+        /**
+         * @param value the double value
+         * @param extra the column or exact value, or null if the slot held
+         * a plain double
+         */
+        void popped(double value, Object extra);
+
+        /**
+         * @param value the double value
+         * @param extra the column or exact value, or null if the slot holds
+         * a plain double
+         */
+        void pushed(double value, Object extra);
+    }
+
     public final static int INITIAL_SIZE = 4;
     private final Logger log = LoggerFactory.getLogger(Stack.class);
 
     private final Object lock;
-    private final LinkedList<Double> stack;
-  
+    private double[] stack;
+    // Parallel to stack, holding the column (double[]) or exact value
+    // (BigDecimal) for slots that have one. Null until the first is pushed,
+    // so plain sums don't pay for it.
+    private Object[] extras;
+    private MathContext mathContext;
+    private int depth;
+    private int lowWater;
+    private Recorder recorder;
+
     public Stack() {
         lock = new Object();
-        stack = new LinkedList<>();        
         reset();
     }
 
     public void reset() {
         synchronized (lock) {
-            stack.clear();
+            stack = new double[INITIAL_SIZE];
+            extras = null;
+            depth = 0;
+            lowWater = 0;
+        }
+    }
+
+    /**
+     * Set (or clear, with null) the recorder. Popping an empty stack doesn't
+     * change anything, so doesn't get recorded.
+     *
+     * @param recorder
+     */
+    public void setRecorder(Recorder recorder) {
+        synchronized (lock) {
+            this.recorder = recorder;
         }
     }
 
     public double pop() {
         synchronized (lock) {
-            if (stack.isEmpty()) {
+            if (depth == 0) {
                 return Double.NaN;
             } else {
-                return stack.pop();
+                depth -= 1;
+                if (depth < lowWater) {
+                    lowWater = depth;
+                }
+                Object extra = null;
+                if (extras != null) {
+                    extra = extras[depth];
+                    extras[depth] = null;
+                }
+                if (recorder != null) {
+                    recorder.popped(stack[depth], extra);
+                }
+                return stack[depth];
             }
         }
     }
 
     public void push(double value) {
+        push(value, null);
+    }
+
+    /**
+     * Push a column of values as a single slot. The array is kept, not
+     * copied, so mustn't be changed afterwards.
+     *
+     * @param column
+     */
+    public void pushColumn(double[] column) {
+        if (column == null) {
+            throw new IllegalArgumentException("Column can't be null");
+        }
+        push(Double.NaN, column);
+    }
+
+    /**
+     * Push a value that a double can't hold exactly. Code that doesn't know
+     * about exact values sees the nearest double.
+     *
+     * @param value
+     */
+    public void pushExact(BigDecimal value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value can't be null");
+        }
+        push(value.doubleValue(), value);
+    }
+
+    /**
+     * Push a slot as it was recorded.
+     *
+     * @param value double value
+     * @param extra column or exact value, or null to push the plain double
+     */
+    void push(double value, Object extra) {
         synchronized (lock) {
-            stack.push(value);
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+                if (extras != null) {
+                    extras = Arrays.copyOf(extras, stack.length);
+                }
+            }
+            if (extra != null && extras == null) {
+                extras = new Object[stack.length];
+            }
+            stack[depth] = value;
+            if (extras != null) {
+                extras[depth] = extra;
+            }
+            if (depth < lowWater) {
+                lowWater = depth;
+            }
+            depth += 1;
+            if (recorder != null) {
+                recorder.pushed(value, extra);
+            }
+        }
+    }
+
+    /**
+     * Turn on precision mode, where buttons that support it keep values
+     * that a double can't hold exactly as BigDecimals rounded to this
+     * context.
+     *
+     * @param mathContext context, or null for plain doubles
+     */
+    public void setMathContext(MathContext mathContext) {
+        synchronized (lock) {
+            this.mathContext = mathContext;
+        }
+    }
+
+    /**
+     * @return the precision mode context, or null if it's off
+     */
+    public MathContext getMathContext() {
+        synchronized (lock) {
+            return mathContext;
         }
     }
 
     public double peek() {
+        return peek(0);
+    }
+
+    public double peek(int d) {
+        synchronized (lock) {
+            if (d < 0 || d >= depth) {
+                throw new IndexOutOfBoundsException("Index: " + d + ", Depth: " + depth);
+            }
+            return stack[depth - 1 - d];
+        }
+    }
+
+    /**
+     * @return the column at the top of the stack, or null if the top slot
+     * holds a scalar or the stack is empty
+     */
+    public double[] peekColumn() {
+        Object extra = peekExtra();
+        return extra instanceof double[] ? (double[]) extra : null;
+    }
+
+    /**
+     * @param d
+     * @return the column at depth d, or null if that slot holds a scalar
+     */
+    public double[] peekColumn(int d) {
+        Object extra = peekExtra(d);
+        return extra instanceof double[] ? (double[]) extra : null;
+    }
+
+    /**
+     * @return the exact value at the top of the stack, or null if the top
+     * slot holds a plain double (or a column) or the stack is empty
+     */
+    public BigDecimal peekExact() {
+        Object extra = peekExtra();
+        return extra instanceof BigDecimal ? (BigDecimal) extra : null;
+    }
+
+    /**
+     * @param d
+     * @return the exact value at depth d, or null if that slot doesn't hold
+     * one
+     */
+    public BigDecimal peekExact(int d) {
+        Object extra = peekExtra(d);
+        return extra instanceof BigDecimal ? (BigDecimal) extra : null;
+    }
+
+    /**
+     * @return the column or exact value at the top of the stack, or null
+     */
+    Object peekExtra() {
         synchronized (lock) {
-            return stack.peek();
+            return depth == 0 || extras == null ? null : extras[depth - 1];
         }
     }
 
-    public double peek(int d) {        
+    Object peekExtra(int d) {
         synchronized (lock) {
-            return stack.get(d);
+            if (d < 0 || d >= depth) {
+                throw new IndexOutOfBoundsException("Index: " + d + ", Depth: " + depth);
+            }
+            return extras == null ? null : extras[depth - 1 - d];
+        }
+    }
+
+    /**
+     * Copy up to count values into dest, starting at depth from. dest[0]
+     * gets the value at peek(from), dest[1] gets peek(from + 1), and so on.
+     *
+     * @param from depth of the first value to copy
+     * @param count maximum number of values to copy
+     * @param dest array to copy into, must hold at least count values
+     * @return number of values actually copied, which will be less than
+     * count if the stack isn't deep enough
+     */
+    public int copyTo(int from, int count, double[] dest) {
+        if (from < 0 || count < 0 || count > dest.length) {
+            throw new IndexOutOfBoundsException("From: " + from + ", Count: " + count + ", Dest: " + dest.length);
+        }
+        synchronized (lock) {
+            int copied = Math.max(0, Math.min(count, depth - from));
+            int top = depth - 1 - from;
+            for (int i = 0; i < copied; i += 1) {
+                dest[i] = stack[top - i];
+            }
+            return copied;
+        }
+    }
+
+    /**
+     * As {@link #copyTo(int, int, double[])}, but also copies the column or
+     * exact value for each slot into extrasDest, null for plain doubles.
+     *
+     * @param from depth of the first value to copy
+     * @param count maximum number of values to copy
+     * @param dest array to copy into, must hold at least count values
+     * @param extrasDest array to copy extras into, must hold at least count
+     * values
+     * @return number of values actually copied
+     */
+    public int copyTo(int from, int count, double[] dest, Object[] extrasDest) {
+        if (count > extrasDest.length) {
+            throw new IndexOutOfBoundsException("Count: " + count + ", Extras dest: " + extrasDest.length);
+        }
+        synchronized (lock) {
+            int copied = copyTo(from, count, dest);
+            int top = depth - 1 - from;
+            for (int i = 0; i < copied; i += 1) {
+                extrasDest[i] = extras == null ? null : extras[top - i];
+            }
+            return copied;
+        }
+    }
+
+    /**
+     * @return a copy of the stack, with the bottom value first. Columns
+     * come out as NaN and exact values as the nearest double, see
+     * {@link #extrasToArray()}.
+     */
+    public double[] toArray() {
+        synchronized (lock) {
+            return Arrays.copyOf(stack, depth);
+        }
+    }
+
+    /**
+     * @return the columns and exact values on the stack, bottom first and
+     * null for plain doubles, or null if there aren't any
+     */
+    public Object[] extrasToArray() {
+        synchronized (lock) {
+            if (extras != null) {
+                for (int i = 0; i < depth; i += 1) {
+                    if (extras[i] != null) {
+                        return Arrays.copyOf(extras, depth);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Replace the contents of the stack.
+     *
+     * @param values new contents, with the bottom value first
+     */
+    public void load(double[] values) {
+        load(values, null);
+    }
+
+    /**
+     * Replace the contents of the stack, columns and exact values included.
+     *
+     * @param values new contents, with the bottom value first
+     * @param extras as returned by {@link #extrasToArray()}, or null if
+     * there aren't any
+     */
+    public void load(double[] values, Object[] extras) {
+        synchronized (lock) {
+            stack = Arrays.copyOf(values, Math.max(INITIAL_SIZE, values.length));
+            this.extras = extras == null ? null : Arrays.copyOf(extras, stack.length);
+            depth = values.length;
+            lowWater = 0;
+        }
+    }
+
+    /**
+     * Find the lowest slot that might have changed since the last call, and
+     * start tracking again from the current depth. Slots are counted from
+     * the bottom of the stack, so everything below the returned slot is
+     * unchanged.
+     *
+     * @return lowest slot, counted from the bottom, that may have changed.
+     * Equal to the depth if nothing has changed
+     */
+    public int takeLowWater() {
+        synchronized (lock) {
+            int result = Math.min(lowWater, depth);
+            lowWater = depth;
+            return result;
         }
     }
 
     public int getDepth() {
-        return stack.size();
+        synchronized (lock) {
+            return depth;
+        }
     }
 
     @Override
     public String toString() {
         StringBuilder result = new StringBuilder();
         result.append("[");
-        for (int i = 0; i < stack.size(); i += 1) {
-            if (i != 0) {
-                result.append(", ");
+        synchronized (lock) {
+            for (int i = depth - 1; i >= 0; i -= 1) {
+                if (i != depth - 1) {
+                    result.append(", ");
+                }
+                if (extras != null && extras[i] instanceof double[]) {
+                    result.append(Arrays.toString((double[]) extras[i]));
+                } else if (extras != null && extras[i] != null) {
+                    result.append(extras[i]);
+                } else {
+                    result.append(stack[i]);
+                }
             }
-            result.append(stack.get(i));
         }
         result.append("]");
         return result.toString();
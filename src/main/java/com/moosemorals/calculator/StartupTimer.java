@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs how long each phase of startup took, counting from when the JVM
+ * started, so that time to first paint and time to first usable click can
+ * be measured.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class StartupTimer {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupTimer.class);
+    private static final long JVM_START = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static final Set<String> seen = new HashSet<>();
+    private static long last = JVM_START;
+
+    private StartupTimer() {
+        // Static methods only
+    }
+
+    /**
+     * Log that a phase has finished.
+     *
+     * @param phase
+     */
+    public static synchronized void mark(String phase) {
+        long now = System.currentTimeMillis();
+        log.info("Startup: {} at {}ms (+{}ms)", phase, now - JVM_START, now - last);
+        last = now;
+    }
+
+    /**
+     * Log that something happened, but only the first time. Cheap enough
+     * to call from paint and click handlers.
+     *
+     * @param event
+     */
+    public static void markOnce(String event) {
+        synchronized (StartupTimer.class) {
+            if (!seen.add(event)) {
+                return;
+            }
+        }
+        mark(event);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How often each button has been pressed, kept across runs in Preferences
+ * so the buttons someone actually uses can be got ready first.
+ *
+ * Counts are stored by button name rather than opcode, so they survive
+ * changes to the layout. Thread safe.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class UsageProfile {
+
+    // Presses of each hot button to run through a scratch engine, enough
+    // for the JIT to take an interest
+    static final int WARM_UP_ROUNDS = 2000;
+
+    private static final Logger log = LoggerFactory.getLogger(UsageProfile.class);
+
+    private final Preferences prefs;
+    private Config config;
+    private long[] counts;
+    private boolean dirty;
+
+    /**
+     * @param prefs node to keep counts in, which only this should use
+     * @param config
+     */
+    public UsageProfile(Preferences prefs, Config config) {
+        this.prefs = prefs;
+        this.config = config;
+        counts = new long[config.getButtonCount()];
+        for (int i = 0; i < counts.length; i += 1) {
+            counts[i] = prefs.getLong(config.getButton(i).getName(), 0);
+        }
+    }
+
+    /**
+     * Carry the counts over to a reloaded config, by button name.
+     *
+     * @param next
+     */
+    public synchronized void setConfig(Config next) {
+        Map<String, Long> byName = new HashMap<>();
+        for (int i = 0; i < counts.length; i += 1) {
+            byName.put(config.getButton(i).getName(), counts[i]);
+        }
+        long[] moved = new long[next.getButtonCount()];
+        for (int i = 0; i < moved.length; i += 1) {
+            String name = next.getButton(i).getName();
+            Long count = byName.get(name);
+            moved[i] = count != null ? count : prefs.getLong(name, 0);
+        }
+        config = next;
+        counts = moved;
+    }
+
+    public synchronized void record(int opcode) {
+        counts[opcode] += 1;
+        dirty = true;
+    }
+
+    public synchronized long getCount(int opcode) {
+        return counts[opcode];
+    }
+
+    /**
+     * @param limit most opcodes to return
+     * @return opcodes of the most pressed buttons, most pressed first,
+     * leaving out any that have never been pressed
+     */
+    public synchronized int[] getHottest(int limit) {
+        List<Integer> used = new ArrayList<>();
+        for (int i = 0; i < counts.length; i += 1) {
+            if (counts[i] > 0) {
+                used.add(i);
+            }
+        }
+        used.sort((Integer left, Integer right) -> Long.compare(counts[right], counts[left]));
+
+        int[] result = new int[Math.min(limit, used.size())];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = used.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Write the counts out, if they've changed.
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        for (int i = 0; i < counts.length; i += 1) {
+            if (counts[i] > 0) {
+                prefs.putLong(config.getButton(i).getName(), counts[i]);
+            }
+        }
+        try {
+            prefs.flush();
+            dirty = false;
+        } catch (BackingStoreException ex) {
+            log.warn("Can't save button usage: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Press each of the given buttons over and over on a scratch engine
+     * that shares the library, so their scripts are compiled and run hot,
+     * along with the engine code around them, before anyone needs them.
+     * This thread gets its own copies of the button functions, but the
+     * code behind them is shared. Slow, so run it in the background.
+     *
+     * @param library
+     * @param opcodes buttons to warm up, most important first
+     */
+    public static void warmUp(ButtonLibrary library, int[] opcodes) {
+        long start = System.nanoTime();
+        Engine scratch = new Engine(library, false);
+        scratch.setLogSteps(false);
+        for (int opcode : opcodes) {
+            Button b = library.getConfig().getButton(opcode);
+            if (library.getOpType(opcode) == ButtonLibrary.OP_SCRIPT && !b.hasCode() && library.getIntrinsic(opcode) == null) {
+                // Nothing to warm up
+                continue;
+            }
+            try {
+                for (int round = 0; round < WARM_UP_ROUNDS; round += 1) {
+                    // Enough arguments for anything, and nothing that
+                    // upsets division or logarithms
+                    for (int i = 0; i < Math.max(2, b.getIn()); i += 1) {
+                        scratch.push(1.5 + i);
+                    }
+                    scratch.command(opcode);
+                    scratch.reset();
+                }
+            } catch (RuntimeException ex) {
+                log.debug("Button [{}] didn't warm up: {}", b.getName(), ex.getMessage());
+                scratch.reset();
+            }
+        }
+        log.debug("Warmed up {} buttons in {}ms", opcodes.length, (System.nanoTime() - start) / 1000000);
+    }
+}
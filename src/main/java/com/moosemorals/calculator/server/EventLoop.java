@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.server;
+
+import com.moosemorals.calculator.ButtonLibrary;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One thread and one Selector, serving a share of the sessions.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+final class EventLoop {
+
+    private final Logger log = LoggerFactory.getLogger(EventLoop.class);
+    private final ButtonLibrary library;
+    private final Selector selector;
+    private final Queue<SocketChannel> incoming;
+    private final Thread thread;
+    private volatile boolean running;
+
+    EventLoop(ButtonLibrary library, String name) throws IOException {
+        this.library = library;
+        selector = Selector.open();
+        incoming = new ConcurrentLinkedQueue<>();
+        thread = new Thread(this::run, name);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Hand over a newly accepted connection. Registration happens on the
+     * loop thread, since registering while it's blocked in select() would
+     * block too.
+     */
+    void add(SocketChannel channel) {
+        incoming.add(channel);
+        selector.wakeup();
+    }
+
+    int getSessionCount() {
+        try {
+            return selector.keys().size();
+        } catch (ClosedSelectorException ex) {
+            return 0;
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                register();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Session session = (Session) key.attachment();
+                    try {
+                        session.handle(key);
+                    } catch (IOException ex) {
+                        log.debug("Session closed: {}", ex.getMessage());
+                        session.close(key);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Event loop failed: {}", ex.getMessage(), ex);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Session) key.attachment()).close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                log.warn("Can't close selector: {}", ex.getMessage());
+            }
+        }
+    }
+
+    private void register() {
+        SocketChannel channel;
+        while ((channel = incoming.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                channel.register(selector, SelectionKey.OP_READ, new Session(library, channel));
+            } catch (IOException ex) {
+                // Only this connection's problem, like a client that reset
+                // before we got to it
+                log.debug("Can't register new connection: {}", ex.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ex2) {
+                    log.debug("Can't close new connection: {}", ex2.getMessage());
+                }
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
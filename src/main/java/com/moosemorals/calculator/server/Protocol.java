@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.server;
+
+/**
+ * Wire format for {@link Server}.
+ *
+ * Every frame, in both directions, is a big-endian int giving the number
+ * of bytes that follow, then that many bytes. Requests start with a type
+ * byte:
+ *
+ * <ul>
+ * <li>{@link #OP} - int opcode: press a button</li>
+ * <li>{@link #PUSH} - double: push a value onto the stack</li>
+ * <li>{@link #UNDO} and {@link #REDO} - nothing else</li>
+ * <li>{@link #PEEK} - int index: read a stack entry, 0 being the value in
+ * the display</li>
+ * </ul>
+ *
+ * Every request gets exactly one response, in order, so clients can send
+ * as many requests as they like before reading. A response is a status
+ * byte, the stack depth as an int, and a double: the peeked value for PEEK,
+ * or the value in the display for everything else.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class Protocol {
+
+    public static final byte OP = 1;
+    public static final byte PUSH = 2;
+    public static final byte UNDO = 3;
+    public static final byte REDO = 4;
+    public static final byte PEEK = 5;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    /**
+     * Length of a response, not counting the length prefix.
+     */
+    public static final int RESPONSE_LENGTH = 1 + 4 + 8;
+
+    /**
+     * Longest request the server will accept, not counting the length
+     * prefix.
+     */
+    public static final int MAX_REQUEST_LENGTH = 64;
+
+    private Protocol() {
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.server;
+
+import com.moosemorals.calculator.ButtonLibrary;
+import com.moosemorals.calculator.Config;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hosts lots of independent calculators over TCP. Each connection is a
+ * session with its own Engine, speaking the {@link Protocol}. Sessions
+ * share one ButtonLibrary, so scripts are only compiled once.
+ *
+ * One thread accepts connections and hands them round a small set of
+ * event loops. A session stays on the same loop for its whole life, so its
+ * requests are always run in order on one thread.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public final class Server implements Closeable {
+
+    public static final int DEFAULT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final Logger log = LoggerFactory.getLogger(Server.class);
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] loops;
+    private final Thread acceptThread;
+    private final ButtonLibrary library;
+    // Reloads queue up behind each other
+    private CompletableFuture<Void> reloading;
+    private volatile boolean running;
+    private int nextLoop;
+
+    /**
+     * Start listening. Returns once the socket is bound.
+     *
+     * @param config buttons for every session
+     * @param address where to listen. Use port 0 to pick a free port
+     * @param loopCount number of event loop threads
+     * @throws IOException if the socket can't be opened
+     */
+    public Server(Config config, SocketAddress address, int loopCount) throws IOException {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("Need at least one event loop");
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        library = new ButtonLibrary(config);
+        library.fillCache();
+        reloading = CompletableFuture.completedFuture(null);
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i += 1) {
+            loops[i] = new EventLoop(library, "calculator-loop-" + (i + 1));
+            loops[i].start();
+        }
+
+        running = true;
+        acceptThread = new Thread(this::acceptLoop, "calculator-accept");
+        acceptThread.start();
+        log.info("Listening on {} with {} loops", getAddress(), loopCount);
+    }
+
+    public Server(Config config, int port) throws IOException {
+        this(config, new InetSocketAddress("127.0.0.1", port), DEFAULT_LOOPS);
+    }
+
+    /**
+     * Switch every session to a changed config. Only scripts that changed
+     * are compiled, in the background, and each session picks up the new
+     * buttons before its next request on its own loop, so nothing stalls
+     * and stacks are kept.
+     *
+     * @param config
+     * @return completes once the new config is live
+     */
+    public synchronized CompletableFuture<Void> reload(Config config) {
+        reloading = reloading.thenCompose((Void ignored) -> {
+            ButtonLibrary current = library.getLatest();
+            return current.reload(config).thenAccept(current::replaceWith);
+        });
+        return reloading;
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * @return number of sessions currently connected
+     */
+    public int getSessionCount() {
+        int count = 0;
+        for (EventLoop loop : loops) {
+            count += loop.getSessionCount();
+        }
+        return count;
+    }
+
+    private void acceptLoop() {
+        try {
+            while (running) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    loops[nextLoop].add(channel);
+                    nextLoop = (nextLoop + 1) % loops.length;
+                }
+            }
+        } catch (IOException ex) {
+            if (running) {
+                log.error("Accept failed, no more sessions: {}", ex.getMessage(), ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        acceptSelector.wakeup();
+        try {
+            acceptThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        serverChannel.close();
+        acceptSelector.close();
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.server;
+
+import com.moosemorals.calculator.ButtonLibrary;
+import com.moosemorals.calculator.Engine;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One connection and its calculator. Only ever touched by its event loop
+ * thread. History is kept in memory only, so that a server with thousands
+ * of sessions doesn't hold a spill file open for each.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+final class Session {
+
+    private static final int BUFFER_SIZE = 4096;
+    // Stop reading requests when this many response bytes are waiting
+    private static final int OUT_HIGH_WATER = 64 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(Session.class);
+    private final Engine engine;
+    private final SocketChannel channel;
+    private final ByteBuffer in;
+    private ByteBuffer out;
+
+    Session(ButtonLibrary library, SocketChannel channel) {
+        this.channel = channel;
+        engine = new Engine(library, false);
+        in = ByteBuffer.allocate(BUFFER_SIZE);
+        out = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    void handle(SelectionKey key) throws IOException {
+        if (key.isReadable() && channel.read(in) < 0) {
+            throw new EOFException("End of stream");
+        }
+
+        boolean pending;
+        do {
+            in.flip();
+            readFrames();
+            in.compact();
+
+            out.flip();
+            channel.write(out);
+            pending = out.hasRemaining();
+            out.compact();
+            // Frames left over from backing off won't get another read
+            // event, so keep going while the client is keeping up
+        } while (!pending && hasFrame());
+
+        int ops = 0;
+        if (pending) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (out.position() < OUT_HIGH_WATER) {
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+    }
+
+    private boolean hasFrame() {
+        return in.position() >= 4 && in.position() >= 4 + in.getInt(0);
+    }
+
+    private void readFrames() throws IOException {
+        while (in.remaining() >= 4 && out.position() < OUT_HIGH_WATER) {
+            int length = in.getInt(in.position());
+            if (length < 1 || length > Protocol.MAX_REQUEST_LENGTH) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                return;
+            }
+            int end = in.position() + 4 + length;
+            in.position(in.position() + 4);
+            try {
+                execute(in.get(), length - 1);
+            } catch (RuntimeException ex) {
+                log.warn("Request failed: {}", ex.getMessage());
+                respond(Protocol.STATUS_ERROR, Double.NaN);
+            }
+            in.position(end);
+        }
+    }
+
+    private static void expect(int length, int expected) {
+        if (length != expected) {
+            throw new IllegalArgumentException("Expected " + expected + " bytes, got " + length);
+        }
+    }
+
+    private void execute(byte type, int length) {
+        switch (type) {
+            case Protocol.OP:
+                expect(length, 4);
+                int opcode = in.getInt();
+                if (opcode < 0 || opcode >= engine.getConfig().getButtonCount()) {
+                    throw new IllegalArgumentException("Unknown opcode " + opcode);
+                }
+                engine.command(opcode);
+                break;
+            case Protocol.PUSH:
+                expect(length, 8);
+                engine.push(in.getDouble());
+                break;
+            case Protocol.UNDO:
+                expect(length, 0);
+                engine.undo();
+                break;
+            case Protocol.REDO:
+                expect(length, 0);
+                engine.redo();
+                break;
+            case Protocol.PEEK:
+                expect(length, 4);
+                respond(Protocol.STATUS_OK, engine.peek(in.getInt()));
+                return;
+            default:
+                throw new IllegalArgumentException("Unknown request type " + type);
+        }
+        respond(Protocol.STATUS_OK, engine.hasDisplayValue() || engine.getDepth() > 0 ? engine.peek() : 0);
+    }
+
+    private void respond(byte status, double value) {
+        if (out.remaining() < 4 + Protocol.RESPONSE_LENGTH) {
+            ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        out.putInt(Protocol.RESPONSE_LENGTH);
+        out.put(status);
+        out.putInt(engine.getDepth());
+        out.putDouble(value);
+    }
+
+    void close(SelectionKey key) {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.debug("Error closing session: {}", ex.getMessage());
+        }
+    }
+}
@@ -25,13 +25,13 @@ package com.moosemorals.calculator.ui;
 
 import com.moosemorals.calculator.Config;
 import com.moosemorals.calculator.Engine;
+import com.moosemorals.calculator.EngineChange;
 import com.moosemorals.calculator.EngineWatcher;
+import com.moosemorals.calculator.StartupTimer;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
 import javax.swing.JComponent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,21 +44,32 @@ public class EngineDisplay extends JComponent implements EngineWatcher {
 
     private static final int BORDER = 5;
     private static final int FONT_SIZE = 24;
+    // Entries moved per click of the mouse wheel
+    private static final int SCROLL_STEP = 3;
 
     private final Logger log = LoggerFactory.getLogger(EngineDisplay.class);
-    private final DecimalFormat df;
+    private final FormatCache cache;
     private final Engine engine;
-    private final Config config;
+    private Config config;
 
-    public EngineDisplay(Config config, Engine engine) {
+    // Reused between paints, sized to the visible rows
+    private double[] values = new double[0];
+    private Object[] extras = new Object[0];
+    // Entries hidden below the bottom of the view
+    private int scroll;
+
+    EngineDisplay(Config config, Engine engine, FastFormat format) {
         this.engine = engine;
         this.config = config;
         this.setFont(new Font("Monospaced", Font.BOLD, FONT_SIZE));
+        this.cache = new FormatCache(format);
 
-        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
-        symbols.setNaN("Err");
-        df = new DecimalFormat(UI.DISPLAY_PATTERN, symbols);
+        addMouseWheelListener(e -> scroll(-e.getWheelRotation() * SCROLL_STEP));
+    }
 
+    void setConfig(Config config) {
+        this.config = config;
+        revalidate();
     }
 
     @Override
@@ -75,6 +86,7 @@ public class EngineDisplay extends JComponent implements EngineWatcher {
 
     @Override
     protected void paintComponent(Graphics g) {
+        StartupTimer.markOnce("first paint");
 
         FontMetrics fm = g.getFontMetrics();
 
@@ -82,22 +94,79 @@ public class EngineDisplay extends JComponent implements EngineWatcher {
             g.setColor(getBackground());
             g.fillRect(0, 0, getWidth(), getHeight());
         }
-        
-        boolean hasDisplay = engine.hasDisplayValue() || engine.getDepth() == 0;
-        
-        if (hasDisplay) {
-            displayLine(g, fm, 0, engine.getDisplayString());
+
+        int depth = engine.getDepth();
+        boolean hasDisplay = engine.hasDisplayValue() || depth == 0;
+
+        // Only read and draw the rows that fit, plus one partly hidden at
+        // the top
+        int rows = getHeight() / fm.getHeight() + 1;
+        int line = 0;
+        if (hasDisplay && scroll == 0) {
+            displayLine(g, fm, line, engine.getDisplayString());
+            line += 1;
         }
 
-        for (int i = 0; i < engine.getDepth(); i += 1) {
-            String text = df.format(engine.getElementAt(i));
-            displayLine(g, fm, hasDisplay ? i + 1 : i, text);
+        int wanted = rows - line;
+        if (wanted > values.length) {
+            values = new double[wanted];
+            extras = new Object[wanted];
+        }
+        int from = Math.min(scroll, depth);
+        int count = engine.copyTo(from, wanted, values, extras);
+        for (int i = 0; i < count; i += 1) {
+            int slot = depth - 1 - (from + i);
+            displayLine(g, fm, line + i, cache.get(slot, values[i], extras[i]));
+            // Don't keep columns alive after they're popped
+            extras[i] = null;
+        }
+
+        if (scroll > 0) {
+            String marker = "\u2193 " + scroll;
+            g.drawString(marker, BORDER, getHeight() - BORDER);
         }
     }
 
+    /**
+     * Move the view up (positive) or down the stack.
+     *
+     * @param entries
+     */
+    void scroll(int entries) {
+        int max = Math.max(0, engine.getDepth() - 1);
+        int next = Math.max(0, Math.min(max, scroll + entries));
+        if (next != scroll) {
+            scroll = next;
+            repaint();
+        }
+    }
+
+    /**
+     * Move the view by a screenful, less one line so there's something to
+     * keep your place.
+     *
+     * @param pages
+     */
+    void scrollPages(int pages) {
+        int rows = getHeight() / getFontMetrics(getFont()).getHeight();
+        scroll(pages * Math.max(1, rows - 1));
+    }
+
     @Override
     public void onEngineChanged() {
+        cache.clear();
+        scroll = 0;
         repaint();
     }
 
+    @Override
+    public void onEngineChanged(EngineChange change) {
+        if (!change.isEmpty()) {
+            cache.invalidate(change);
+            // Jump back to the top of the stack when something happens
+            scroll = 0;
+            repaint();
+        }
+    }
+
 }
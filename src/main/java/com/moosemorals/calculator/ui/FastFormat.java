@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.ui;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Formats doubles like DecimalFormat with UI.DISPLAY_PATTERN, without
+ * DecimalFormat's overhead for the common case.
+ *
+ * Values below FAST_LIMIT are scaled to millionths and rounded as a long.
+ * DecimalFormat rounds half-even on the exact binary value, which the
+ * scaled double can't always see, so anything close to a tie goes to the
+ * DecimalFormat along with NaN, infinities, big numbers and negative zeros.
+ * Not thread safe.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+final class FastFormat {
+
+    private static final double FAST_LIMIT = 1e8;
+    private static final double SCALE = 1e6;
+    private static final int FRACTION_DIGITS = 6;
+    // Comfortably more than the error in value * SCALE below FAST_LIMIT
+    private static final double TIE_MARGIN = 0.01;
+
+    private final DecimalFormat df;
+    private final char[] scratch = new char[32];
+    private final String negativePrefix;
+    private final char zero;
+    private final char grouping;
+    private final char decimal;
+    private final int groupingSize;
+
+    FastFormat() {
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+        symbols.setNaN("Err");
+        df = new DecimalFormat(UI.DISPLAY_PATTERN, symbols);
+
+        negativePrefix = df.getNegativePrefix();
+        zero = symbols.getZeroDigit();
+        grouping = symbols.getGroupingSeparator();
+        decimal = symbols.getDecimalSeparator();
+        groupingSize = df.getGroupingSize();
+    }
+
+    String format(double value) {
+        int start = fill(value);
+        if (start < 0) {
+            return df.format(value);
+        }
+        return new String(scratch, start, scratch.length - start);
+    }
+
+    void format(double value, StringBuilder out) {
+        int start = fill(value);
+        if (start < 0) {
+            out.append(df.format(value));
+        } else {
+            out.append(scratch, start, scratch.length - start);
+        }
+    }
+
+    String format(BigDecimal value) {
+        return df.format(value);
+    }
+
+    /**
+     * Write value right aligned into scratch.
+     *
+     * @param value
+     * @return index of the first character, or -1 if the value needs the
+     * DecimalFormat
+     */
+    private int fill(double value) {
+        double abs = Math.abs(value);
+        if (!(abs < FAST_LIMIT)) {
+            // Also catches NaN
+            return -1;
+        }
+        double scaled = abs * SCALE;
+        long rounded = (long) scaled;
+        double fraction = scaled - rounded;
+        if (Math.abs(fraction - 0.5) < TIE_MARGIN) {
+            return -1;
+        } else if (fraction > 0.5) {
+            rounded += 1;
+        }
+
+        boolean negative = Double.doubleToRawLongBits(value) < 0;
+        if (negative && rounded == 0) {
+            // DecimalFormat shows these as -0
+            return -1;
+        }
+
+        long whole = rounded / (long) SCALE;
+        int part = (int) (rounded % (long) SCALE);
+
+        int pos = scratch.length;
+        if (part != 0) {
+            int digits = FRACTION_DIGITS;
+            while (part % 10 == 0) {
+                part /= 10;
+                digits -= 1;
+            }
+            for (int i = 0; i < digits; i += 1) {
+                scratch[--pos] = (char) (zero + part % 10);
+                part /= 10;
+            }
+            scratch[--pos] = decimal;
+        }
+
+        int count = 0;
+        do {
+            if (count > 0 && groupingSize > 0 && count % groupingSize == 0) {
+                scratch[--pos] = grouping;
+            }
+            scratch[--pos] = (char) (zero + whole % 10);
+            whole /= 10;
+            count += 1;
+        } while (whole > 0);
+
+        if (negative) {
+            for (int i = negativePrefix.length() - 1; i >= 0; i -= 1) {
+                scratch[--pos] = negativePrefix.charAt(i);
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.ui;
+
+import com.moosemorals.calculator.EngineChange;
+import java.math.BigDecimal;
+
+/**
+ * Remembers the text for recently drawn stack entries, so a repaint only
+ * formats the ones that changed.
+ *
+ * Entries are keyed by slot, counted from the bottom of the stack like
+ * EngineChange, and by value, and live in a small direct mapped table so
+ * the cache stays the same size however deep the stack gets. Only used from
+ * the event thread.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+final class FormatCache {
+
+    // Power of two, and more than fit on the screen at once
+    private static final int SIZE = 64;
+    // Values of a column shown before it's cut short
+    private static final int COLUMN_PREVIEW = 3;
+
+    private final FastFormat format;
+    private final int[] slots = new int[SIZE];
+    private final long[] bits = new long[SIZE];
+    private final Object[] extras = new Object[SIZE];
+    private final String[] texts = new String[SIZE];
+    private final StringBuilder scratch = new StringBuilder();
+
+    FormatCache(FastFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Forget everything at or above the first changed slot.
+     *
+     * @param change
+     */
+    void invalidate(EngineChange change) {
+        int first = change.getFirstChanged();
+        for (int i = 0; i < SIZE; i += 1) {
+            if (texts[i] != null && slots[i] >= first) {
+                texts[i] = null;
+                extras[i] = null;
+            }
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < SIZE; i += 1) {
+            texts[i] = null;
+            extras[i] = null;
+        }
+    }
+
+    /**
+     * @param slot position of the entry counted from the bottom of the stack
+     * @param value the entry's value
+     * @param extra the entry's column or exact value, as from
+     * Engine.copyTo, or null
+     * @return the entry formatted for display
+     */
+    String get(int slot, double value, Object extra) {
+        int i = slot & (SIZE - 1);
+        long key = Double.doubleToRawLongBits(value);
+        if (texts[i] != null && slots[i] == slot && bits[i] == key && extras[i] == extra) {
+            return texts[i];
+        }
+
+        String text = format(value, extra);
+        slots[i] = slot;
+        bits[i] = key;
+        extras[i] = extra;
+        texts[i] = text;
+        return text;
+    }
+
+    private String format(double value, Object extra) {
+        if (extra instanceof double[]) {
+            return formatColumn((double[]) extra);
+        } else if (extra instanceof BigDecimal) {
+            return format.format((BigDecimal) extra);
+        } else {
+            return format.format(value);
+        }
+    }
+
+    private String formatColumn(double[] column) {
+        scratch.setLength(0);
+        scratch.append('[');
+        for (int i = 0; i < Math.min(COLUMN_PREVIEW, column.length); i += 1) {
+            if (i > 0) {
+                scratch.append(", ");
+            }
+            format.format(column[i], scratch);
+        }
+        if (column.length > COLUMN_PREVIEW) {
+            scratch.append(", \u2026 (").append(column.length).append(")");
+        }
+        return scratch.append(']').toString();
+    }
+}
@@ -24,9 +24,13 @@
 package com.moosemorals.calculator.ui;
 
 import com.moosemorals.calculator.Button;
+import com.moosemorals.calculator.ButtonLibrary;
+import com.moosemorals.calculator.CoalescingEngineWatcher;
 import com.moosemorals.calculator.Config;
 import com.moosemorals.calculator.Engine;
 import com.moosemorals.calculator.Main;
+import com.moosemorals.calculator.StartupTimer;
+import com.moosemorals.calculator.UsageProfile;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.GridBagConstraints;
@@ -40,13 +44,12 @@ import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
 import java.util.prefs.Preferences;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,63 +65,43 @@ public class UI implements ActionListener {
     static final String DISPLAY_PATTERN = "#,##0.######";
 
     private final Logger log = LoggerFactory.getLogger(UI.class);
-    private final DecimalFormat df;
+    private final FastFormat format;
     private final Engine engine;
+    private final UsageProfile usage;
     private final Clippy clippy;
-    private final Config config;
     private final Preferences prefs;
+    // Only touched on the event thread, and replaced by setLibrary
+    private Config config;
+    private JPanel numbers;
+    private EngineDisplay display;
+    private JFrame window;
 
-    public UI(Preferences prefs, Config config, Engine engine) {
+    public UI(Preferences prefs, Config config, Engine engine, UsageProfile usage) {
         this.prefs = prefs;
         this.config = config;
         this.engine = engine;
+        this.usage = usage;
         clippy = new Clippy();
-
-        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
-        symbols.setNaN("Err");
-        df = new DecimalFormat(DISPLAY_PATTERN, symbols);
+        format = new FastFormat();
     }
 
     public void build() {
-        JPanel numbers = new JPanel();
+        numbers = new JPanel();
         numbers.setLayout(new GridBagLayout());
+        addButtons();
 
-        Font buttonFont = new Font("Monospaced", Font.BOLD, 16);
-        for (int i = 0; i < config.getButtonCount(); i += 1) {
-            Button button = config.getButton(i);
-            JButton b = new JButton();
-
-            GridBagConstraints c = new GridBagConstraints();
-
-            c.gridx = button.getX();
-            c.gridy = button.getY();
-            c.gridheight = button.getHeight();
-            c.gridwidth = button.getWidth();
-
-            b.setText(button.getLabel());
-            b.setFont(buttonFont);
-            b.setMargin(new Insets(0, 0, 0, 0));
-            b.setActionCommand(String.format("%s%s", CMD_PREFIX, button.getName()));
-            b.addActionListener(this);
-            b.setPreferredSize(new Dimension(config.getSize() * button.getWidth(), config.getSize() * button.getHeight()));
-            b.setFocusable(false);
-            numbers.add(b, c);
-        }
-
-        EngineDisplay display = new EngineDisplay(config, engine);
-        engine.addEngineWatcher(display);
+        display = new EngineDisplay(config, engine, format);
+        engine.addEngineWatcher(new CoalescingEngineWatcher(display, SwingUtilities::invokeLater));
 
         KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher((KeyEvent e) -> {
             if (e.getID() == KeyEvent.KEY_TYPED) {
 
                 char key = e.getKeyChar();
 
-                for (int i = 0; i < config.getButtonCount(); i += 1) {
-                    Button b = config.getButton(i);
-                    if (b.getKey() == key) {
-                        engine.command(b.getName());
-                        return false;
-                    }
+                int opcode = config.getOpcodeForKey(key);
+                if (opcode != Config.NO_OPCODE) {
+                    command(opcode);
+                    return false;
                 }
 
                 if (key == 'x' || key == 'X' || key == 'q' || key == 'Q') {
@@ -127,7 +110,7 @@ public class UI implements ActionListener {
             } else if (e.getID() == KeyEvent.KEY_PRESSED) {
 
                 if (e.isControlDown() && e.getKeyCode() == KeyEvent.VK_C) {
-                    String text = df.format(engine.getElementAt(0));
+                    String text = format.format(engine.getElementAt(0));
                     clippy.sendToClipboard(text);
                 } else if (e.isControlDown() && e.getKeyCode() == KeyEvent.VK_V) {
                     String text = clippy.getFromClipboard();
@@ -139,6 +122,10 @@ public class UI implements ActionListener {
                             // ignored, but no point trying to add the number
                         }
                     }
+                } else if (e.getKeyCode() == KeyEvent.VK_PAGE_UP) {
+                    display.scrollPages(1);
+                } else if (e.getKeyCode() == KeyEvent.VK_PAGE_DOWN) {
+                    display.scrollPages(-1);
                 } else if (e.getKeyCode() == KeyEvent.VK_Z) {
                     engine.undo();
                 } else if (e.getKeyCode() == KeyEvent.VK_Y) {
@@ -150,7 +137,7 @@ public class UI implements ActionListener {
             return false;
         });
 
-        JFrame window = new JFrame("Calculator");
+        window = new JFrame("Calculator");
 
         window.addComponentListener(new ComponentAdapter() {
             @Override
@@ -187,6 +174,50 @@ public class UI implements ActionListener {
         window.setVisible(true);
     }
 
+    /**
+     * Switch to a reloaded config, rebuilding the buttons. The stack and
+     * display stay as they are. Call on the event thread, so no button
+     * press can see the old layout with the new engine or the other way
+     * round.
+     *
+     * @param library
+     */
+    public void setLibrary(ButtonLibrary library) {
+        engine.setLibrary(library);
+        config = library.getConfig();
+        usage.setConfig(config);
+        if (numbers != null) {
+            numbers.removeAll();
+            addButtons();
+            display.setConfig(config);
+            window.pack();
+        }
+    }
+
+    private void addButtons() {
+        Font buttonFont = new Font("Monospaced", Font.BOLD, 16);
+        for (int i = 0; i < config.getButtonCount(); i += 1) {
+            Button button = config.getButton(i);
+            JButton b = new JButton();
+
+            GridBagConstraints c = new GridBagConstraints();
+
+            c.gridx = button.getX();
+            c.gridy = button.getY();
+            c.gridheight = button.getHeight();
+            c.gridwidth = button.getWidth();
+
+            b.setText(button.getLabel());
+            b.setFont(buttonFont);
+            b.setMargin(new Insets(0, 0, 0, 0));
+            b.setActionCommand(CMD_PREFIX + i);
+            b.addActionListener(this);
+            b.setPreferredSize(new Dimension(config.getSize() * button.getWidth(), config.getSize() * button.getHeight()));
+            b.setFocusable(false);
+            numbers.add(b, c);
+        }
+    }
+
     @Override
 
     public void actionPerformed(ActionEvent e) {
@@ -199,8 +230,16 @@ public class UI implements ActionListener {
             return;
         }
 
-        cmd = cmd.substring(CMD_PREFIX.length());
+        try {
+            command(Integer.parseInt(cmd.substring(CMD_PREFIX.length())));
+        } catch (NumberFormatException ex) {
+            log.warn("Action doesn't have an opcode: {}", cmd);
+        }
+    }
 
-        engine.command(cmd);
+    private void command(int opcode) {
+        usage.record(opcode);
+        engine.command(opcode);
+        StartupTimer.markOnce("first command");
     }
 }
@@ -23,8 +23,11 @@
  */
 package com.moosemorals.calculator.xml;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import javax.xml.stream.Location;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -40,15 +43,21 @@ public abstract class BaseParser<T> {
 
     protected final static String NAMESPACE = null;
 
+    // Finding a factory is a service lookup, so only do it once per thread
+    private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal.withInitial(XMLInputFactory::newFactory);
+
     public T parse(InputStream in) throws IOException, XMLStreamException {
-        XMLInputFactory factory = XMLInputFactory.newFactory();
-        XMLStreamReader parser = factory.createXMLStreamReader(in, "UTF-8");
+        XMLStreamReader parser = FACTORY.get().createXMLStreamReader(in, "UTF-8");
 
         parser.nextTag();
 
         return parse(parser);
     }
 
+    public T parse(ReadableByteChannel in) throws IOException, XMLStreamException {
+        return parse(new BufferedInputStream(Channels.newInputStream(in), 64 * 1024));
+    }
+
     public abstract T parse(XMLStreamReader parser) throws XMLStreamException, IOException;
 
     protected int readIntAttribute(XMLStreamReader parser, String name) throws XMLStreamException {
@@ -127,6 +136,15 @@ public abstract class BaseParser<T> {
         }
     }
 
+    protected double readDoubleTag(XMLStreamReader parser, String tagName) throws IOException, XMLStreamException {
+        String raw = readTag(parser, tagName);
+        try {
+            return Double.parseDouble(raw);
+        } catch (NumberFormatException ex) {
+            throw new XMLStreamException("Can't parse double from " + tagName + " tag at " + getLocation(parser));
+        }
+    }
+
     protected float readFloatTag(XMLStreamReader parser, String tagName) throws IOException, XMLStreamException {
         String raw = readTag(parser, tagName);
         try {
@@ -24,6 +24,8 @@
 package com.moosemorals.calculator.xml;
 
 import com.moosemorals.calculator.Button;
+import com.moosemorals.calculator.Intrinsics;
+import com.moosemorals.calculator.RpnProgram;
 
 import static com.moosemorals.calculator.xml.BaseParser.NAMESPACE;
 
@@ -130,6 +132,21 @@ public class ButtonsParser extends BaseParser<List<Button>> {
                 case "script":
                     builder.setCode(readTag(parser, "script"));
                     break;
+                case "intrinsic":
+                    raw = readTag(parser, "intrinsic").trim();
+                    if (!Intrinsics.exists(raw)) {
+                        throw new XMLStreamException("Unknown intrinsic [" + raw + "] at " + getLocation(parser));
+                    }
+                    builder.setIntrinsic(raw);
+                    break;
+                case "rpn":
+                    raw = readTag(parser, "rpn");
+                    try {
+                        builder.setRpn(RpnProgram.compile(raw));
+                    } catch (IllegalArgumentException ex) {
+                        throw new XMLStreamException(ex.getMessage() + " at " + getLocation(parser), ex);
+                    }
+                    break;
                 case "key":
                     raw = readTag(parser, "key");
                     if (raw != null && !raw.isEmpty()) {
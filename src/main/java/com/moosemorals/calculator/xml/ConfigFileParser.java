@@ -81,6 +81,20 @@ public class ConfigFileParser extends BaseParser<Config> {
                 case "size":
                     builder.setSize(readIntTag(parser, "size"));
                     break;
+                case "history":
+                    int depth = readIntTag(parser, "history");
+                    if (depth < 1) {
+                        throw new XMLStreamException("History must be at least 1 at " + getLocation(parser));
+                    }
+                    builder.setHistoryDepth(depth);
+                    break;
+                case "precision":
+                    int precision = readIntTag(parser, "precision");
+                    if (precision < 0) {
+                        throw new XMLStreamException("Precision can't be negative at " + getLocation(parser));
+                    }
+                    builder.setPrecision(precision);
+                    break;
                 default:
                     log.error("Unexpected tag {} at {}, skiping", parser.getLocalName(), getLocation(parser));
                     skipTag(parser);
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.xml;
+
+import com.moosemorals.calculator.Engine;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Base64;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a session saved by SessionExport into an Engine, pushing each stack
+ * entry (and history command) as it's read rather than building the whole
+ * stack first.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class SessionParser extends BaseParser<Integer> {
+
+    private final Logger log = LoggerFactory.getLogger(SessionParser.class);
+    private final Engine engine;
+
+    public SessionParser(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return the number of stack entries loaded
+     */
+    @Override
+    public Integer parse(XMLStreamReader parser) throws XMLStreamException, IOException {
+        parser.require(XMLStreamReader.START_ELEMENT, NAMESPACE, "session");
+
+        Engine.Loader loader = engine.load();
+        try {
+            String text = null;
+            int count = 0;
+            while (parser.nextTag() == XMLStreamReader.START_ELEMENT) {
+                switch (parser.getLocalName()) {
+                    case "display":
+                        text = readTag(parser, "display");
+                        break;
+                    case "stack":
+                        count += parseStack(parser, loader);
+                        break;
+                    case "history":
+                        parseHistory(parser, loader);
+                        break;
+                    default:
+                        log.error("Unexpected tag {} at {}, skipping", parser.getLocalName(), getLocation(parser));
+                        skipTag(parser);
+                        break;
+                }
+            }
+            parser.require(XMLStreamReader.END_ELEMENT, NAMESPACE, "session");
+
+            if (text != null) {
+                loader.setDisplay(text);
+            }
+            loader.finish();
+            return count;
+        } catch (XMLStreamException | IOException ex) {
+            // Don't leave half a session behind
+            engine.load().finish();
+            throw ex;
+        } catch (RuntimeException ex) {
+            engine.load().finish();
+            throw new XMLStreamException("Bad session at " + getLocation(parser) + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private int parseStack(XMLStreamReader parser, Engine.Loader loader) throws XMLStreamException, IOException {
+        int count = 0;
+        while (parser.nextTag() == XMLStreamReader.START_ELEMENT) {
+            switch (parser.getLocalName()) {
+                case "value":
+                    loader.push(readDoubleTag(parser, "value"));
+                    break;
+                case "exact":
+                    loader.pushExact(readExactTag(parser));
+                    break;
+                case "column":
+                    loader.pushColumn(parseColumn(parser));
+                    break;
+                default:
+                    throw new XMLStreamException("Unexpected tag " + parser.getLocalName() + " in stack at " + getLocation(parser));
+            }
+            count += 1;
+        }
+        parser.require(XMLStreamReader.END_ELEMENT, NAMESPACE, "stack");
+        return count;
+    }
+
+    private void parseHistory(XMLStreamReader parser, Engine.Loader loader) throws XMLStreamException, IOException {
+        long size = readLongAttribute(parser, "size");
+        loader.startHistory(readLongAttribute(parser, "oldest"), readLongAttribute(parser, "position"));
+        Base64.Decoder base64 = Base64.getDecoder();
+        long count = 0;
+        while (parser.nextTag() == XMLStreamReader.START_ELEMENT) {
+            String raw = readTag(parser, "command");
+            try {
+                loader.addHistory(base64.decode(raw.trim()));
+            } catch (IllegalArgumentException ex) {
+                throw new XMLStreamException("Can't decode command at " + getLocation(parser));
+            }
+            count += 1;
+        }
+        parser.require(XMLStreamReader.END_ELEMENT, NAMESPACE, "history");
+        if (count != size) {
+            throw new XMLStreamException("History has " + count + " commands, expected " + size + " at " + getLocation(parser));
+        }
+    }
+
+    private BigDecimal readExactTag(XMLStreamReader parser) throws XMLStreamException {
+        String raw = readTag(parser, "exact");
+        try {
+            return new BigDecimal(raw.trim());
+        } catch (NumberFormatException ex) {
+            throw new XMLStreamException("Can't parse exact value from [" + raw + "] at " + getLocation(parser));
+        }
+    }
+
+    private double[] parseColumn(XMLStreamReader parser) throws XMLStreamException, IOException {
+        int size = readIntAttribute(parser, "size");
+        if (size < 0) {
+            throw new XMLStreamException("Bad column size " + size + " at " + getLocation(parser));
+        }
+        double[] column = new double[size];
+        int i = 0;
+        while (parser.nextTag() == XMLStreamReader.START_ELEMENT) {
+            if (i == size) {
+                throw new XMLStreamException("Column longer than its size at " + getLocation(parser));
+            }
+            column[i] = readDoubleTag(parser, "value");
+            i += 1;
+        }
+        parser.require(XMLStreamReader.END_ELEMENT, NAMESPACE, "column");
+        if (i != size) {
+            throw new XMLStreamException("Column shorter than its size at " + getLocation(parser));
+        }
+        return column;
+    }
+}
@@ -23,7 +23,12 @@
  */
 package com.moosemorals.calculator.xml;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -38,13 +43,32 @@ import org.slf4j.LoggerFactory;
 public class XML implements AutoCloseable {
 
     private final Logger log = LoggerFactory.getLogger(XML.class);
+    // Finding a factory is a service lookup, so only do it once per thread
+    private static final ThreadLocal<XMLOutputFactory> FACTORY = ThreadLocal.withInitial(XMLOutputFactory::newFactory);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final XMLStreamWriter xml;
+    private final OutputStream stream;
 
     public XML(Writer out) throws XMLStreamException {
-        xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+        xml = FACTORY.get().createXMLStreamWriter(out);
+        stream = null;
         xml.writeStartDocument();
     }
 
+    /**
+     * Write UTF-8 straight to a channel, for documents too big to build in
+     * memory. Closing flushes, but leaves the channel open.
+     *
+     * @param out
+     * @throws XMLStreamException
+     */
+    public XML(WritableByteChannel out) throws XMLStreamException {
+        stream = new BufferedOutputStream(Channels.newOutputStream(out), BUFFER_SIZE);
+        xml = FACTORY.get().createXMLStreamWriter(stream, "UTF-8");
+        xml.writeStartDocument("UTF-8", "1.0");
+    }
+
     private void writeAttr(String... attr) throws XMLStreamException {
         if (attr != null) {
             if (attr.length % 2 != 0) {
@@ -90,7 +114,18 @@ public class XML implements AutoCloseable {
     }
     
     public XML add(String name, int value) throws XMLStreamException {
-        return add(name, String.format("%d", value), (String[])null);            
+        return add(name, Integer.toString(value), (String[])null);
+    }
+
+    public XML add(String name, long value) throws XMLStreamException {
+        return add(name, Long.toString(value), (String[])null);
+    }
+
+    /**
+     * Doubles are written so that they parse back to exactly the same value.
+     */
+    public XML add(String name, double value) throws XMLStreamException {
+        return add(name, Double.toString(value), (String[])null);
     }
 
     public XML add(String name, List<? extends XMLable> l) throws XMLStreamException {
@@ -118,5 +153,12 @@ public class XML implements AutoCloseable {
     public void close() throws XMLStreamException {
         xml.flush();
         xml.close();
+        if (stream != null) {
+            try {
+                stream.flush();
+            } catch (IOException ex) {
+                throw new XMLStreamException("Can't write to channel", ex);
+            }
+        }
     }
 }
@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class BatchRunnerNGTest {
+
+    private static final double FUDGE = 0.0001;
+
+    private final Logger log = LoggerFactory.getLogger(BatchRunnerNGTest.class);
+    private Config config;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        config = new ConfigFileParser().parse(getClass().getResourceAsStream("/config.xml"));
+    }
+
+    private String evaluate(BatchRunner runner, String line) {
+        StringBuilder result = new StringBuilder();
+        runner.evaluate(line, result);
+        return result.toString();
+    }
+
+    @Test
+    public void test_evaluate() {
+        BatchRunner runner = new BatchRunner(config, 1);
+
+        assertEquals(evaluate(runner, "2 3 +"), "5");
+        assertEquals(evaluate(runner, "  2\t3 + 4 * "), "20");
+        assertEquals(evaluate(runner, "9 -0.5 -"), "9.5");
+        assertEquals(evaluate(runner, "5 \"Number 1\" \"Number 2\" +"), "17");
+        assertEquals(evaluate(runner, "\"Number 1\" . \"Number 5\""), "1.5");
+        assertEquals(evaluate(runner, "16 \"Square root\" Duplicate *"), "16");
+        assertEquals(evaluate(runner, ""), "0");
+        assertEquals(evaluate(runner, "+"), BatchRunner.ERROR);
+        assertEquals(evaluate(runner, "2 frobnicate"), BatchRunner.ERROR);
+        assertEquals(evaluate(runner, "\"Number 1"), BatchRunner.ERROR);
+    }
+
+    @Test
+    public void test_badLines() throws Exception {
+        StringWriter out = new StringWriter();
+        new BatchRunner(config, 2).run(new BufferedReader(new StringReader("1 2 +\n.\n3 4 *\n")), out);
+        assertEquals(out.toString(), "3\n0\n12\n");
+
+        // A script that fails gives Err for its line, and the rest still run
+        List<Button> buttons = new ArrayList<>();
+        for (int i = 0; i < config.getButtonCount(); i += 1) {
+            Button b = config.getButton(i);
+            buttons.add(new Button.Builder()
+                    .setX(b.getX()).setY(b.getY())
+                    .setWidth(b.getWidth()).setHeight(b.getHeight())
+                    .setIn(b.getIn()).setOut(b.getOut())
+                    .setName(b.getName()).setLabel(b.getLabel()).setKey(b.getKey())
+                    .setCode(b.getName().equals("Multiplication (*)")
+                            ? "function (stack) { return { execute: function () { throw new Error('broken'); }, undo: function () {} }; }"
+                            : b.getCode())
+                    .build());
+        }
+        BatchRunner runner = new BatchRunner(new Config.Builder().addButtons(buttons).build(), 1);
+        assertEquals(evaluate(runner, "3 4 *"), BatchRunner.ERROR);
+        assertEquals(evaluate(runner, "3 4 +"), "7");
+    }
+
+    @Test
+    public void test_runInOrder() throws Exception {
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i += 1) {
+            input.append(i).append(" 1 +\n");
+            expected.append(i + 1).append('\n');
+        }
+
+        StringWriter out = new StringWriter();
+        long lines = new BatchRunner(config, 4).run(new BufferedReader(new StringReader(input.toString())), out);
+
+        assertEquals(lines, 5000);
+        assertEquals(out.toString(), expected.toString());
+    }
+
+    @Test
+    public void test_evaluateLines() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 2000; i += 1) {
+            lines.add(i % 100 == 0 ? "nonsense" : i + " 2 *");
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        double[] results;
+        try {
+            results = new BatchRunner(config, 1).evaluate(lines, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(results.length, 2000);
+        for (int i = 0; i < 2000; i += 1) {
+            if (i % 100 == 0) {
+                assertTrue(Double.isNaN(results[i]));
+            } else {
+                assertEquals(results[i], i * 2.0, FUDGE);
+            }
+        }
+    }
+
+    @Test
+    public void test_evaluateInputs() {
+        Batch program = new Batch()
+                .command(config.getOpcode("Multiplication (*)"))
+                .command(config.getOpcode("Addition (+)"));
+        double[][] inputs = new double[1000][];
+        for (int i = 0; i < inputs.length; i += 1) {
+            inputs[i] = new double[]{1, i, 3};
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        double[] results;
+        try {
+            results = new BatchRunner(config, 1).evaluate(program, inputs, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int i = 0; i < inputs.length; i += 1) {
+            assertEquals(results[i], 1 + i * 3.0, FUDGE);
+        }
+    }
+
+    /**
+     * Not a proper benchmark, but logs how the fork-join evaluation scales
+     * with threads on this machine. Only runs with -Pbenchmark.
+     */
+    @Test(groups = "benchmark")
+    public void test_scaling() {
+        Batch program = new Batch()
+                .command(config.getOpcode("Multiplication (*)"))
+                .command(config.getOpcode("Addition (+)"));
+        double[][] inputs = new double[20000][];
+        for (int i = 0; i < inputs.length; i += 1) {
+            inputs[i] = new double[]{i, 2, 3};
+        }
+        BatchRunner runner = new BatchRunner(config, 1);
+
+        int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            double[] results;
+            long elapsed;
+            try {
+                // Warm up, so each thread has its engine and the JIT has run
+                runner.evaluate(program, inputs, pool);
+
+                long start = System.nanoTime();
+                results = runner.evaluate(program, inputs, pool);
+                elapsed = System.nanoTime() - start;
+            } finally {
+                pool.shutdown();
+            }
+
+            assertEquals(results[inputs.length - 1], inputs.length - 1 + 6.0, FUDGE);
+            log.info("{} threads: {} programs in {}ms ({} per second)", threads, inputs.length,
+                    elapsed / 1000000, inputs.length * 1000000000L / elapsed);
+        }
+    }
+}
@@ -4,6 +4,11 @@ import org.mockito.InOrder;
 import org.testng.annotations.Test;
 import static org.mockito.Mockito.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 import static org.testng.Assert.*;
@@ -100,6 +105,223 @@ public class CommandStackTest {
         assertEquals(three, result.get(1));
     }
 
+    @Test
+    public void test_bounded() throws Exception {
+        CommandStack stack = new CommandStack(2, null);
+
+        Command one = mock(Command.class);
+        Command two = mock(Command.class);
+        Command three = mock(Command.class);
+
+        stack.addCommand(one);
+        stack.addCommand(two);
+        stack.addCommand(three);
+
+        List<Command> result = stack.dump();
+        assertEquals(result.size(), 2);
+        assertEquals(two, result.get(0));
+        assertEquals(three, result.get(1));
+
+        stack.undo();
+        stack.undo();
+        stack.undo();
+        verify(one, never()).undo();
+    }
+
+    @Test
+    public void test_spill() throws Exception {
+        Stack values = new Stack();
+        CommandStack stack = new CommandStack(3, new SegmentSpill(null, new PushCodec(values), 64, 4));
+
+        for (int i = 0; i < 20; i += 1) {
+            stack.addCommand(DeltaCommand.push(values, i));
+        }
+        assertEquals(stack.dump().size(), 3);
+        assertEquals(values.getDepth(), 20);
+
+        for (int i = 0; i < 15; i += 1) {
+            stack.undo();
+        }
+        assertEquals(values.getDepth(), 5);
+        assertEquals(values.peek(), 4, 0);
+
+        stack.redo();
+        stack.redo();
+        assertEquals(values.getDepth(), 7);
+        assertEquals(values.peek(), 6, 0);
+
+        for (int i = 0; i < 10; i += 1) {
+            stack.undo();
+        }
+        assertEquals(values.getDepth(), 0);
+
+        stack.clear();
+    }
+
+    @Test
+    public void test_spillBatches() throws Exception {
+        Stack values = new Stack();
+        Path dir = Files.createTempDirectory("spill");
+        SegmentSpill spill = new SegmentSpill(dir, new PushCodec(values), 64, 4);
+
+        for (int i = 0; i < 4; i += 1) {
+            spill.push(DeltaCommand.push(values, i));
+        }
+        // Still waiting in memory
+        assertEquals(dir.toFile().list().length, 0);
+
+        spill.push(DeltaCommand.push(values, 4));
+        assertEquals(dir.toFile().list().length, 1);
+
+        for (int i = 4; i >= 0; i -= 1) {
+            assertEquals(((DeltaCommand) spill.pop()).getPushed()[0], i, 0);
+        }
+        assertTrue(spill.isEmpty());
+
+        spill.clear();
+        Files.delete(dir);
+    }
+
+    @Test
+    public void test_readAndAppend() throws Exception {
+        Stack values = new Stack();
+        CommandStack stack = new CommandStack(3, new SegmentSpill(null, new PushCodec(values), 64, 4));
+
+        for (int i = 0; i < 20; i += 1) {
+            stack.addCommand(DeltaCommand.push(values, i));
+        }
+        stack.undo();
+
+        // Spilled ones (on disk and still pending) come out first, and
+        // reading doesn't move anything
+        try (CommandStack.Reader reader = stack.read()) {
+            for (int i = 0; i < 20; i += 1) {
+                assertEquals(((DeltaCommand) reader.next()).getPushed()[0], i, 0);
+            }
+            assertNull(reader.next());
+        }
+        assertEquals(stack.getPosition(), 19);
+        assertEquals(stack.getSize(), 20);
+
+        Stack copy = new Stack();
+        for (int i = 0; i < 19; i += 1) {
+            copy.push(i);
+        }
+        CommandStack loaded = new CommandStack(3, new SegmentSpill(null, new PushCodec(copy), 64, 4));
+        loaded.reset(0);
+        for (int i = 0; i < 20; i += 1) {
+            Command c = DeltaCommand.push(copy, i);
+            assertTrue(loaded.append(c, i < 19));
+        }
+        assertEquals(loaded.getPosition(), 19);
+        assertEquals(loaded.getSize(), 20);
+        assertEquals(loaded.getOldest(), 0);
+
+        loaded.redo();
+        assertEquals(copy.peek(), 19, 0);
+        loaded.jumpTo(0);
+        assertEquals(copy.getDepth(), 0);
+
+        stack.clear();
+        loaded.clear();
+    }
+
+    /**
+     * Enough of a codec to spill commands that push one value.
+     */
+    private static class PushCodec implements SegmentSpill.Codec {
+
+        private final Stack values;
 
+        PushCodec(Stack values) {
+            this.values = values;
+        }
+
+        @Override
+        public void write(Command c, DataOutput out) throws IOException {
+            out.writeDouble(((DeltaCommand) c).getPushed()[0]);
+        }
+
+        @Override
+        public Command read(DataInput in) throws IOException {
+            return DeltaCommand.push(values, in.readDouble());
+        }
+    }
+
+    @Test
+    public void test_jumpTo() throws Exception {
+        Stack values = new Stack();
+        CommandStack stack = new CommandStack(100, new SegmentSpill(null, new PushCodec(values)), () -> {
+            double[] saved = values.toArray();
+            return () -> values.load(saved);
+        }, 16);
+
+        for (int i = 0; i < 250; i += 1) {
+            stack.addCommand(DeltaCommand.push(values, i));
+        }
+        assertEquals(stack.getPosition(), 250);
+        assertEquals(stack.getSize(), 250);
+
+        stack.jumpTo(237);
+        assertEquals(values.getDepth(), 237);
+        assertEquals(values.peek(), 236, 0);
+
+        stack.jumpTo(245);
+        assertEquals(values.getDepth(), 245);
+        assertEquals(values.peek(), 244, 0);
+
+        // Past the in-memory window, into the spill
+        stack.jumpTo(100);
+        assertEquals(values.getDepth(), 100);
+        assertEquals(values.peek(), 99, 0);
+        assertEquals(stack.getPosition(), 100);
+
+        stack.jumpTo(0);
+        assertEquals(values.getDepth(), 0);
+
+        stack.jumpTo(stack.getSize());
+        assertEquals(values.getDepth(), stack.getSize());
+    }
+
+    @Test
+    public void test_checkpointSpacing() throws Exception {
+        Stack values = new Stack();
+        for (int i = 0; i < 16 * 1024; i += 1) {
+            values.push(i);
+        }
+        int[] taken = new int[1];
+        CommandStack stack = new CommandStack(1000, null, () -> {
+            taken[0] += 1;
+            double[] saved = values.toArray();
+            return new CommandStack.Checkpoint() {
+                @Override
+                public void restore() {
+                    values.load(saved);
+                }
+
+                @Override
+                public int getSize() {
+                    return saved.length;
+                }
+            };
+        }, 16);
+
+        for (int i = 0; i < 1000; i += 1) {
+            stack.addCommand(DeltaCommand.push(values, i));
+        }
+        // A deep stack costs 1024 commands between checkpoints, not 16
+        assertEquals(taken[0], 1);
+
+        stack.jumpTo(500);
+        assertEquals(values.getDepth(), 16 * 1024 + 500);
+        assertEquals(values.peek(), 499, 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_jumpTooFar() throws Exception {
+        CommandStack stack = new CommandStack();
+        stack.addCommand(mock(Command.class));
+        stack.jumpTo(2);
+    }
 
 }
@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class ConfigSnapshotNGTest {
+
+    private static void assertSameConfig(Config actual, Config expected) {
+        assertEquals(actual.getSize(), expected.getSize());
+        assertEquals(actual.getHistoryDepth(), expected.getHistoryDepth());
+        assertEquals(actual.getPrecision(), expected.getPrecision());
+        assertEquals(actual.getButtonCount(), expected.getButtonCount());
+        for (int i = 0; i < expected.getButtonCount(); i += 1) {
+            Button a = actual.getButton(i);
+            Button e = expected.getButton(i);
+            assertEquals(a.getName(), e.getName());
+            assertEquals(a.getLabel(), e.getLabel());
+            assertEquals(a.getX(), e.getX());
+            assertEquals(a.getY(), e.getY());
+            assertEquals(a.getWidth(), e.getWidth());
+            assertEquals(a.getHeight(), e.getHeight());
+            assertEquals(a.getIn(), e.getIn());
+            assertEquals(a.getOut(), e.getOut());
+            assertEquals(a.getKey(), e.getKey());
+            assertEquals(a.getCode(), e.getCode());
+            assertEquals(a.getIntrinsic(), e.getIntrinsic());
+            assertEquals(a.hasRpn() ? a.getRpn().getSource() : null, e.hasRpn() ? e.getRpn().getSource() : null);
+        }
+    }
+
+    @Test
+    public void test_roundTrip() throws Exception {
+        Path file = Files.createTempDirectory("config").resolve("config.snapshot");
+
+        Config parsed = ConfigSnapshot.load(getClass().getResourceAsStream("/config.xml"), file);
+        assertTrue(Files.exists(file));
+
+        Config loaded = ConfigSnapshot.read(file, checksum("/config.xml"));
+        assertNotNull(loaded);
+        assertSameConfig(loaded, parsed);
+    }
+
+    @Test
+    public void test_intrinsics() throws Exception {
+        // The main config has intrinsics and stack programs as well as
+        // scripts, but the test one hides it on the classpath
+        Path source = Paths.get("src", "main", "resources", "config.xml");
+        Path file = Files.createTempDirectory("config").resolve("config.snapshot");
+
+        Config parsed;
+        try (InputStream in = Files.newInputStream(source)) {
+            parsed = ConfigSnapshot.load(in, file);
+        }
+        Config loaded = ConfigSnapshot.read(file, ConfigSnapshot.checksum(Files.readAllBytes(source)));
+        assertNotNull(loaded);
+        assertSameConfig(loaded, parsed);
+    }
+
+    @Test
+    public void test_stale() throws Exception {
+        Path file = Files.createTempDirectory("config").resolve("config.snapshot");
+
+        ConfigSnapshot.load(getClass().getResourceAsStream("/config.xml"), file);
+        assertNull(ConfigSnapshot.read(file, ConfigSnapshot.checksum(new byte[]{1, 2, 3})));
+        assertNull(ConfigSnapshot.read(file.resolveSibling("missing"), 0));
+    }
+
+    private long checksum(String resource) throws Exception {
+        try (InputStream in = getClass().getResourceAsStream(resource)) {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                raw.write(chunk, 0, read);
+            }
+            return ConfigSnapshot.checksum(raw.toByteArray());
+        }
+    }
+}
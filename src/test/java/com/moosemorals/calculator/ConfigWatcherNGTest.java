@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class ConfigWatcherNGTest {
+
+    @Test
+    public void test_reload() throws Exception {
+        Path dir = Files.createTempDirectory("config");
+        Path file = dir.resolve("config.xml");
+        try (InputStream in = getClass().getResourceAsStream("/config.xml")) {
+            Files.copy(in, file);
+        }
+
+        CountDownLatch reloaded = new CountDownLatch(1);
+        AtomicReference<Config> seen = new AtomicReference<>();
+        try (ConfigWatcher watcher = new ConfigWatcher(file, (Config next) -> {
+            seen.set(next);
+            reloaded.countDown();
+        })) {
+            // Broken files are skipped, the next good save gets through
+            Files.write(dir.resolve("broken.xml"), "<calculator>".getBytes(StandardCharsets.UTF_8));
+            Files.move(dir.resolve("broken.xml"), file, StandardCopyOption.REPLACE_EXISTING);
+            Thread.sleep(500);
+            try (InputStream in = getClass().getResourceAsStream("/config.xml")) {
+                Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            // Polling watch services can take a while
+            assertTrue(reloaded.await(30, TimeUnit.SECONDS));
+        }
+        assertTrue(seen.get().getButtonCount() > 0);
+        assertTrue(seen.get().getOpcode("Enter") != Config.NO_OPCODE);
+    }
+}
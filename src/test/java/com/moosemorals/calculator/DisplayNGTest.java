@@ -72,4 +72,39 @@ public class DisplayNGTest {
         assertEquals(d.getValue(), 1.4);
     }
     
+    @Test
+    public void test_entry() {
+        Display d = new Display();
+        for (char c : "12.50".toCharArray()) {
+            d.push(c);
+        }
+        assertTrue(d.hasDecimalPoint());
+        assertEquals(d.getValue(), 12.5);
+        assertEquals(d.toString(), "12.50");
+
+        assertEquals(d.popChar(), '0');
+        d.pop();
+        assertEquals(d.getValue(), 12.0);
+        assertEquals(d.pop(), ".");
+        assertFalse(d.hasDecimalPoint());
+        assertEquals(d.getValue(), 12.0);
+    }
+
+    @Test
+    public void test_longEntry() {
+        Display d = new Display();
+        String digits = "0.12345678901234567890123456789";
+        for (int i = 0; i < digits.length(); i += 1) {
+            d.push(digits.charAt(i));
+            assertEquals(d.getValue(), Double.parseDouble(digits.substring(0, i + 1)));
+        }
+        while (d.hasValue()) {
+            d.pop();
+            if (d.hasValue()) {
+                assertEquals(d.getValue(), Double.parseDouble(d.toString()));
+            }
+        }
+        assertEquals(d.getValue(), 0.0);
+    }
+
 }
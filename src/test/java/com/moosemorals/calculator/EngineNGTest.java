@@ -24,7 +24,16 @@
 package com.moosemorals.calculator;
 
 import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.script.ScriptException;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
@@ -60,5 +69,369 @@ public class EngineNGTest {
         assertEquals(e.getDepth(), 0);
     }
 
+    @Test
+    public void test_opcode() {
+        Engine e = new Engine(config);
+        e.command(config.getOpcodeForKey('2'));
+        e.command(config.getOpcodeForKey('\n'));
+        e.command(config.getOpcodeForKey('3'));
+        e.command(config.getOpcodeForKey('+'));
+        assertEquals(e.peek(), 5.0, FUDGE);
+        assertEquals(e.getDepth(), 1);
+    }
+
+    @Test
+    public void test_fillCachePriority() throws Exception {
+        Engine e = new Engine(config);
+        ButtonLibrary library = e.getLibrary();
+        int power = config.getOpcode("Power");
+        // Completes once Power and the operators are compiled, by the pool
+        // rather than by anything pressed here
+        e.fillCache(power).get(30, TimeUnit.SECONDS);
+        assertTrue(library.isCompiled(power));
+
+        e.command("Number 2");
+        e.command("Enter");
+        e.command("Number 3");
+        e.command("Power");
+        assertEquals(e.peek(), 8.0, FUDGE);
+    }
+
+    @Test
+    public void test_reload() throws Exception {
+        ButtonLibrary library = new ButtonLibrary(config);
+        Engine e = new Engine(library);
+        e.push(5);
+        e.push(3);
+
+        // Same layout, but Addition now subtracts
+        String subtract = config.getButton(config.getOpcode("Subtraction (-)")).getCode();
+        Config changed = replaceCode("Addition (+)", subtract);
+
+        int sin = config.getOpcode("Sin");
+        Object compiled = library.getCompiled(sin);
+        ButtonLibrary next = library.reload(changed).get(30, TimeUnit.SECONDS);
+        // Unchanged scripts aren't compiled again
+        assertTrue(next.getCompiled(sin) == compiled);
+
+        library.replaceWith(next);
+        assertTrue(library.getLatest() == next);
+        e.command("Addition (+)");
+        assertEquals(e.peek(), 2.0, FUDGE);
+        assertTrue(e.getConfig() == changed);
+    }
+
+    /**
+     * @return the test config, with one button running different code
+     */
+    private Config replaceCode(String name, String code) {
+        List<Button> buttons = new ArrayList<>();
+        for (int i = 0; i < config.getButtonCount(); i += 1) {
+            Button b = config.getButton(i);
+            buttons.add(new Button.Builder()
+                    .setX(b.getX()).setY(b.getY())
+                    .setWidth(b.getWidth()).setHeight(b.getHeight())
+                    .setIn(b.getIn()).setOut(b.getOut())
+                    .setName(b.getName()).setLabel(b.getLabel()).setKey(b.getKey())
+                    .setCode(b.getName().equals(name) ? code : b.getCode())
+                    .build());
+        }
+        return new Config.Builder().addButtons(buttons).build();
+    }
+
+    @Test
+    public void test_fillCache() {
+        Engine e = new Engine(config);
+        e.fillCache();
+        e.command("Number 2");
+        e.command("Enter");
+        e.command("Number 3");
+        e.command("Power");
+        e.command("Square root");
+        assertEquals(e.peek(), Math.sqrt(8), FUDGE);
+        assertEquals(e.getDepth(), 1);
+    }
+
+    @Test
+    public void test_undoRepeatedScript() {
+        Engine e = new Engine(config);
+        e.command("Number 2");
+        e.command("Enter");
+        e.command("Number 3");
+        e.command("Enter");
+        e.command("Number 4");
+        e.command("Addition (+)");
+        e.command("Addition (+)");
+        assertEquals(e.peek(), 9.0, FUDGE);
+
+        e.undo();
+        assertEquals(e.getDepth(), 2);
+        assertEquals(e.peek(), 7.0, FUDGE);
+
+        e.undo();
+        assertEquals(e.getDepth(), 3);
+        assertEquals(e.peek(0), 4.0, FUDGE);
+        assertEquals(e.peek(1), 3.0, FUDGE);
+        assertEquals(e.peek(2), 2.0, FUDGE);
+    }
+
+    @Test
+    public void test_jumpTo() {
+        Engine e = new Engine(config);
+        e.command("Number 1");
+        e.command("Number 2");
+        long typed = e.getHistoryIndex();
+        e.command("Enter");
+        e.command("Number 3");
+        e.command("Multiplication (*)");
+        assertEquals(e.peek(), 36.0, FUDGE);
+
+        e.jumpTo(typed);
+        assertEquals(e.getDepth(), 0);
+        assertEquals(e.getDisplayString(), "12");
+
+        e.jumpTo(e.getHistorySize());
+        assertEquals(e.peek(), 36.0, FUDGE);
+        assertEquals(e.getDepth(), 1);
+    }
+
+    @Test
+    public void test_batch() {
+        Engine e = new Engine(config);
+        int[] notified = new int[1];
+        e.addEngineWatcher(() -> notified[0] += 1);
+
+        e.push(1);
+        notified[0] = 0;
+
+        Batch batch = new Batch();
+        for (int i = 0; i < 1000; i += 1) {
+            batch.push(i).command(config.getOpcode("Addition (+)"));
+        }
+        batch.command(config.getOpcode("Number 5"));
+        e.executeBatch(batch);
+
+        assertEquals(notified[0], 1);
+        assertEquals(e.getDepth(), 1);
+        assertEquals(e.getElementAt(0), 1 + 999 * 1000 / 2, FUDGE);
+        assertEquals(e.getDisplayString(), "5");
+
+        e.undo();
+        assertEquals(e.getDepth(), 1);
+        assertEquals(e.peek(), 1.0, FUDGE);
+
+        e.redo();
+        assertEquals(e.getElementAt(0), 1 + 999 * 1000 / 2, FUDGE);
+    }
+
+    @Test
+    public void test_batchFailure() {
+        Config broken = replaceCode("Addition (+)", "function (stack) {"
+                + " return { execute: function () { stack.pop(); throw new Error('broken'); },"
+                + " undo: function () {} }; }");
+        Engine e = new Engine(broken);
+        e.push(5);
+        long history = e.getHistorySize();
+
+        Batch batch = new Batch()
+                .push(1).command(broken.getOpcode("Number 2"))
+                .command(broken.getOpcode("Addition (+)"));
+        try {
+            e.executeBatch(batch);
+            fail("Expected the script error");
+        } catch (RuntimeException ex) {
+            // expected
+        }
+        assertEquals(e.getDepth(), 1);
+        assertEquals(e.peek(), 5.0, FUDGE);
+        assertFalse(e.hasDisplayValue());
+        assertEquals(e.getHistorySize(), history);
+
+        try {
+            e.executeBatch(new Batch().push(1).command(broken.getButtonCount()));
+            fail("Expected a bad opcode");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        assertEquals(e.getDepth(), 1);
+    }
+
+    @Test
+    public void test_batchClear() {
+        Engine e = new Engine(config);
+        e.push(1);
+        e.push(2);
+        e.executeBatch(new Batch().command(config.getOpcode("Clear")).push(3));
+        assertEquals(e.getDepth(), 1);
+
+        e.undo();
+        assertEquals(e.getDepth(), 2);
+        assertEquals(e.peek(), 2.0, FUDGE);
+    }
+
+    @Test
+    public void test_changeEvents() {
+        Engine e = new Engine(config);
+        List<EngineChange> changes = new ArrayList<>();
+        e.addEngineWatcher(new EngineWatcher() {
+            @Override
+            public void onEngineChanged() {
+            }
+
+            @Override
+            public void onEngineChanged(EngineChange change) {
+                changes.add(change);
+            }
+        });
+
+        e.push(1);
+        e.push(2);
+        e.push(3);
+        e.command("Addition (+)");
+
+        EngineChange add = changes.get(3);
+        assertEquals(add.getOldDepth(), 3);
+        assertEquals(add.getNewDepth(), 2);
+        assertEquals(add.getFirstChanged(), 1);
+        assertFalse(add.isDisplayChanged());
+
+        e.command("Number 5");
+        EngineChange digit = changes.get(4);
+        assertTrue(digit.isDisplayChanged());
+        assertEquals(digit.getFirstChanged(), 2);
+
+        EngineChange merged = changes.get(2).merge(add).merge(digit);
+        assertEquals(merged.getOldDepth(), 2);
+        assertEquals(merged.getNewDepth(), 2);
+        assertEquals(merged.getFirstChanged(), 1);
+        assertTrue(merged.isDisplayChanged());
+    }
+
+    @Test
+    public void test_coalescing() {
+        Engine e = new Engine(config);
+        List<Runnable> queue = new ArrayList<>();
+        List<EngineChange> changes = new ArrayList<>();
+        e.addEngineWatcher(new CoalescingEngineWatcher(new EngineWatcher() {
+            @Override
+            public void onEngineChanged() {
+            }
+
+            @Override
+            public void onEngineChanged(EngineChange change) {
+                changes.add(change);
+            }
+        }, queue::add));
+
+        for (int i = 0; i < 100; i += 1) {
+            e.push(i);
+        }
+        assertEquals(queue.size(), 1);
+        queue.remove(0).run();
+
+        assertEquals(changes.size(), 1);
+        assertEquals(changes.get(0).getOldDepth(), 0);
+        assertEquals(changes.get(0).getNewDepth(), 100);
+        assertEquals(changes.get(0).getFirstChanged(), 0);
+    }
+
+    @Test
+    public void test_sharedLibrary() throws Exception {
+        ButtonLibrary library = new ButtonLibrary(config);
+        Engine a = new Engine(library);
+        Engine b = new Engine(library);
+
+        a.push(2);
+        a.push(3);
+        b.push(10);
+        b.push(20);
+        a.command("Addition (+)");
+        b.command("Addition (+)");
+        b.command("Addition (+)");
+
+        assertEquals(a.peek(), 5.0, FUDGE);
+        assertEquals(b.getDepth(), 1);
+        assertEquals(b.peek(), Double.NaN);
+
+        b.undo();
+        assertEquals(b.peek(), 30.0, FUDGE);
+        a.undo();
+        assertEquals(a.peek(), 3.0, FUDGE);
+
+        int add = config.getOpcode("Addition (+)");
+        assertTrue(library.getScript(add) == library.getScript(add));
+
+        // Other threads get their own function, from the same compile
+        Object[] other = new Object[2];
+        Thread t = new Thread(() -> {
+            try {
+                other[0] = library.getScript(add);
+                other[1] = library.getCompiled(add);
+            } catch (ScriptException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        t.start();
+        t.join();
+        assertTrue(other[0] != null && other[0] != library.getScript(add));
+        assertTrue(other[1] == library.getCompiled(add));
+    }
+
+    @Test
+    public void test_columns() {
+        // Short history, so that columns have to go through the spill
+        Engine e = new Engine(new Config.Builder().setHistoryDepth(2).build());
+        e.pushColumn(new double[]{1, 2, 3});
+        e.push(10);
+        e.push(1);
+        e.push(2);
+        assertEquals(e.getColumnAt(3), new double[]{1, 2, 3});
+
+        e.undo();
+        e.undo();
+        e.undo();
+        e.undo();
+        assertEquals(e.getDepth(), 0);
+
+        e.redo();
+        assertEquals(e.getColumnAt(0), new double[]{1, 2, 3});
+    }
+
+    @Test
+    public void test_precision() {
+        Config precise = new Config.Builder()
+                .setPrecision(34)
+                .setHistoryDepth(2)
+                .addButtons(Arrays.asList(
+                        new Button.Builder().setName("Number 0").setLabel("0").build(),
+                        new Button.Builder().setName("Number 1").setLabel("1").build(),
+                        new Button.Builder().setName("Number 2").setLabel("2").build(),
+                        new Button.Builder().setName("Decimal point").setLabel(".").build(),
+                        new Button.Builder().setName("Enter").setLabel("E").build(),
+                        new Button.Builder().setName("Add").setLabel("+").setIn(2).setOut(1).setIntrinsic("add").build()))
+                .build();
+        Engine e = new Engine(precise);
+
+        for (String b : new String[]{"Number 0", "Decimal point", "Number 1", "Enter",
+            "Number 0", "Decimal point", "Number 2", "Enter", "Add"}) {
+            e.command(b);
+        }
+        assertEquals(e.getExactAt(0), new BigDecimal("0.3"));
+
+        // Through the spill and back
+        e.push(1);
+        e.push(2);
+        e.undo();
+        e.undo();
+        e.undo();
+        assertEquals(e.getExactAt(0), new BigDecimal("0.2"));
+        assertEquals(e.getExactAt(1), new BigDecimal("0.1"));
+        e.redo();
+        assertEquals(e.getExactAt(0), new BigDecimal("0.3"));
+
+        Engine plain = new Engine(config);
+        plain.push(0.1);
+        assertEquals(plain.getExactAt(0), null);
+    }
 
 }
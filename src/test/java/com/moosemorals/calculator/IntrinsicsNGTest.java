@@ -0,0 +1,261 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.HashMap;
+import java.util.Map;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Check that each intrinsic does the same thing as the JavaScript version of
+ * the button it replaces.
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class IntrinsicsNGTest {
+
+    private static final double[][] INPUTS = {
+        {1, 2},
+        {-3.5, 7.25},
+        {0, 0},
+        {10, 0},
+        {0.5, -2},
+        {1e300, 1e10},
+        {Double.NaN, 4},};
+
+    private final Map<String, String> buttons = new HashMap<>();
+    private Config config;
+    private ScriptEngine scriptEngine;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        config = new ConfigFileParser().parse(getClass().getResourceAsStream("/config.xml"));
+        scriptEngine = new ScriptEngineManager().getEngineByName("nashorn");
+
+        buttons.put("Addition (+)", "add");
+        buttons.put("Subtraction (-)", "subtract");
+        buttons.put("Multiplication (*)", "multiply");
+        buttons.put("Division (/)", "divide");
+        buttons.put("Power", "pow");
+        buttons.put("Sin", "sin");
+        buttons.put("Cos", "cos");
+        buttons.put("Tan", "tan");
+        buttons.put("Square root", "sqrt");
+        buttons.put("Natural Logarithm", "ln");
+        buttons.put("Reciprocal", "reciprocal");
+        buttons.put("Sign change", "negate");
+        buttons.put("Pi", "pi");
+        buttons.put("Duplicate", "dup");
+        buttons.put("Swap", "swap");
+        buttons.put("Drop", "drop");
+    }
+
+    @Test
+    public void test_registry() {
+        for (String intrinsic : buttons.values()) {
+            assertTrue(Intrinsics.exists(intrinsic), intrinsic);
+        }
+    }
+
+    @Test
+    public void test_matchesScripts() throws Exception {
+        for (Map.Entry<String, String> entry : buttons.entrySet()) {
+            Button b = config.getButton(config.getOpcode(entry.getKey()));
+
+            for (double[] input : INPUTS) {
+                Stack jsStack = load(input);
+                Stack javaStack = load(input);
+
+                JSObject func = (JSObject) scriptEngine.eval(b.getCode());
+                Command js = new JsCommand((ScriptObjectMirror) func.call(null, jsStack));
+                Command java = Intrinsics.create(entry.getValue(), javaStack);
+
+                js.execute();
+                java.execute();
+                assertSame(entry.getValue() + " execute", javaStack, jsStack);
+
+                js.undo();
+                java.undo();
+                assertSame(entry.getValue() + " undo", javaStack, jsStack);
+            }
+        }
+    }
+
+    @Test
+    public void test_undoKeepsOwnState() {
+        Stack s = load(new double[]{1, 2, 3});
+
+        Command first = Intrinsics.create("add", s);
+        Command second = Intrinsics.create("add", s);
+        first.execute();
+        second.execute();
+        assertEquals(s.peek(), 6, 0);
+
+        second.undo();
+        first.undo();
+        assertSame("add twice", s, load(new double[]{1, 2, 3}));
+    }
+
+    private static Stack load(double[] values) {
+        Stack s = new Stack();
+        for (double v : values) {
+            s.push(v);
+        }
+        return s;
+    }
+
+    private static void assertSame(String message, Stack actual, Stack expected) {
+        assertEquals(actual.getDepth(), expected.getDepth(), message);
+        for (int i = 0; i < expected.getDepth(); i += 1) {
+            double a = actual.peek(i);
+            double e = expected.peek(i);
+            if (Double.isNaN(e)) {
+                assertTrue(Double.isNaN(a), message);
+            } else {
+                assertEquals(a, e, Math.ulp(e), message);
+            }
+        }
+    }
+
+    @Test
+    public void test_columns() {
+        Stack stack = new Stack();
+        Command add = Intrinsics.create("add", stack);
+        Command subtract = Intrinsics.create("subtract", stack);
+        Command sqrt = Intrinsics.create("sqrt", stack);
+
+        stack.pushColumn(new double[]{1, 4, 9});
+        stack.pushColumn(new double[]{3, 5, 7});
+        add.execute();
+        assertEquals(stack.peekColumn(), new double[]{4, 9, 16});
+
+        sqrt.execute();
+        assertEquals(stack.peekColumn(), new double[]{2, 3, 4});
+
+        stack.push(10);
+        Intrinsics.create("swap", stack).execute();
+        subtract.execute();
+        assertEquals(stack.getDepth(), 1);
+        assertEquals(stack.peekColumn(), new double[]{8, 7, 6});
+
+        subtract.undo();
+        assertEquals(stack.getDepth(), 2);
+        assertEquals(stack.peekColumn(), new double[]{2, 3, 4});
+        assertEquals(stack.peek(1), 10.0);
+
+        stack.reset();
+        stack.pushColumn(new double[]{1, 2});
+        stack.pushColumn(new double[]{1, 2, 3});
+        add.execute();
+        assertTrue(Double.isNaN(stack.peek()));
+        assertEquals(stack.peekColumn(), null);
+    }
+
+    @Test
+    public void test_precision() {
+        Stack stack = new Stack();
+        stack.setMathContext(MathContext.DECIMAL128);
+        Command add = Intrinsics.create("add", stack);
+        Command multiply = Intrinsics.create("multiply", stack);
+        Command divide = Intrinsics.create("divide", stack);
+
+        // Exact sums stay as doubles
+        stack.push(2);
+        stack.push(3);
+        multiply.execute();
+        assertEquals(stack.peekExact(), null);
+        assertEquals(stack.peek(), 6.0);
+
+        stack.push(4);
+        divide.execute();
+        assertEquals(stack.peekExact(), null);
+        assertEquals(stack.peek(), 1.5);
+        stack.reset();
+
+        stack.pushExact(new BigDecimal("0.1"));
+        stack.pushExact(new BigDecimal("0.2"));
+        add.execute();
+        assertEquals(stack.peekExact(), new BigDecimal("0.3"));
+
+        add.undo();
+        assertEquals(stack.peekExact(), new BigDecimal("0.2"));
+        assertEquals(stack.peekExact(1), new BigDecimal("0.1"));
+        stack.reset();
+
+        // Rounded, so promoted
+        stack.push(1);
+        stack.push(3);
+        divide.execute();
+        BigDecimal third = stack.peekExact();
+        assertEquals(third, BigDecimal.ONE.divide(new BigDecimal(3), MathContext.DECIMAL128));
+        stack.push(3);
+        multiply.execute();
+        assertEquals(stack.peekExact(), new BigDecimal("0.9999999999999999999999999999999999"));
+        stack.reset();
+
+        // Overflow, so promoted
+        stack.push(1e308);
+        stack.push(1e308);
+        add.execute();
+        assertEquals(stack.peekExact(), new BigDecimal(1e308).add(new BigDecimal(1e308), MathContext.DECIMAL128));
+
+        // Underflow, so promoted
+        stack.push(1e-200);
+        stack.push(1e-200);
+        multiply.execute();
+        assertEquals(stack.peekExact(), new BigDecimal(1e-200).multiply(new BigDecimal(1e-200), MathContext.DECIMAL128));
+        stack.push(0);
+        stack.push(1e-200);
+        multiply.execute();
+        assertEquals(stack.peekExact(), null);
+        assertEquals(stack.peek(), 0.0);
+
+        // Back to a double when the result fits
+        stack.pushExact(new BigDecimal("0.3"));
+        stack.pushExact(new BigDecimal("0.7"));
+        add.execute();
+        assertEquals(stack.peekExact(), null);
+        assertEquals(stack.peek(), 1.0);
+
+        stack.pushExact(new BigDecimal("0.1"));
+        Intrinsics.create("negate", stack).execute();
+        assertEquals(stack.peekExact(), new BigDecimal("-0.1"));
+        stack.reset();
+
+        stack.push(3);
+        Intrinsics.create("reciprocal", stack).execute();
+        assertEquals(stack.peekExact(), third);
+    }
+
+}
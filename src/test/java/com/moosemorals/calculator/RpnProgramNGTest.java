@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class RpnProgramNGTest {
+
+    private static final double FUDGE = 0.0001;
+
+    @Test
+    public void test_implicit() {
+        RpnProgram p = RpnProgram.compile("swap pow");
+        assertEquals(p.getIn(), 2);
+        assertEquals(p.getOut(), 1);
+
+        Stack s = new Stack();
+        s.push(3);
+        s.push(2);
+        Command c = p.create(s);
+        c.execute();
+        assertEquals(s.getDepth(), 1);
+        assertEquals(s.peek(), 8, FUDGE);
+
+        c.undo();
+        assertEquals(s.getDepth(), 2);
+        assertEquals(s.peek(0), 2, FUDGE);
+        assertEquals(s.peek(1), 3, FUDGE);
+    }
+
+    @Test
+    public void test_named() {
+        RpnProgram p = RpnProgram.compile("x 2 * 1 +");
+        assertEquals(p.getIn(), 1);
+        assertEquals(p.getOut(), 1);
+
+        double[] results = new double[1];
+        p.evaluate(new double[]{4}, results);
+        assertEquals(results[0], 9, FUDGE);
+    }
+
+    @Test
+    public void test_orderAndOutputs() {
+        RpnProgram p = RpnProgram.compile("y x - x y /");
+        assertEquals(p.getIn(), 2);
+        assertEquals(p.getOut(), 2);
+
+        double[] results = new double[2];
+        p.evaluate(new double[]{2, 10}, results);
+        assertEquals(results[0], 8, FUDGE);
+        assertEquals(results[1], 0.2, FUDGE);
+    }
+
+    @Test
+    public void test_words() {
+        double[] results = new double[1];
+        RpnProgram.compile("dup * pi *").evaluate(new double[]{2}, results);
+        assertEquals(results[0], 4 * Math.PI, FUDGE);
+
+        RpnProgram.compile("1 drop sqrt neg").evaluate(new double[]{16}, results);
+        assertEquals(results[0], -4, FUDGE);
+    }
+
+    @Test(timeOut = 10000)
+    public void test_chainedDup() {
+        // Each dup doubles the tree, so this never finishes if shared
+        // values are worked out again for every use
+        StringBuilder source = new StringBuilder("x 1 -");
+        for (int i = 0; i < 64; i += 1) {
+            source.append(" dup dup * +");
+        }
+        RpnProgram p = RpnProgram.compile(source.toString());
+        assertEquals(p.getScratchSize(), 64);
+
+        double[] results = new double[1];
+        p.evaluate(new double[]{1.5}, results);
+        double expected = 0.5;
+        for (int i = 0; i < 64; i += 1) {
+            expected = expected + expected * expected;
+        }
+        assertEquals(results[0], expected, FUDGE);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_unknownWord() {
+        RpnProgram.compile("x frobnicate");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_namedUnderflow() {
+        RpnProgram.compile("x +");
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import jdk.nashorn.api.scripting.JSObject;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class ScriptCompilerNGTest {
+
+    private static final String CODE = "function (x) { return x * 2; }";
+
+    private Path dir;
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+            dir = null;
+        }
+    }
+
+    @Test
+    public void test_compile() throws Exception {
+        JSObject func = ScriptCompiler.bind(new ScriptCompiler().compile(CODE));
+        assertEquals(((Number) func.call(null, 4)).doubleValue(), 8.0, 0);
+    }
+
+    @Test
+    public void test_persistentCache() throws Exception {
+        dir = Files.createTempDirectory("script-cache");
+
+        JSObject func = ScriptCompiler.bind(new ScriptCompiler(dir).compile(CODE));
+        assertNull(System.getProperty(ScriptCompiler.CACHE_DIR_PROPERTY));
+        assertEquals(((Number) func.call(null, 4)).doubleValue(), 8.0, 0);
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertTrue(files.anyMatch(Files::isRegularFile));
+        }
+
+        // Second compiler should load from the cache and still work
+        func = ScriptCompiler.bind(new ScriptCompiler(dir).compile(CODE));
+        assertEquals(((Number) func.call(null, 5)).doubleValue(), 10.0, 0);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class SessionExportNGTest {
+
+    // More than one chunk, so chunks have to come out in the right order
+    private static final int DEPTH = 10000;
+
+    private Config config;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        config = new ConfigFileParser().parse(getClass().getResourceAsStream("/config.xml"));
+    }
+
+    private Engine fill() {
+        Engine engine = new Engine(config);
+        Engine.Loader loader = engine.load();
+        for (int i = 0; i < DEPTH; i += 1) {
+            loader.push(i + 0.1);
+        }
+        loader.pushColumn(new double[]{1, Double.NaN, -3.5});
+        loader.pushExact(new BigDecimal("0.1000000000000000000001"));
+        loader.push(Double.NEGATIVE_INFINITY);
+        loader.finish();
+
+        engine.command("Number 1");
+        engine.command("Decimal point");
+        engine.command("Number 2");
+        return engine;
+    }
+
+    private static void assertSameState(Engine actual, Engine expected) {
+        assertEquals(actual.getDepth(), expected.getDepth());
+        for (int i = 0; i < expected.getDepth(); i += 1) {
+            assertEquals(actual.getElementAt(i), expected.getElementAt(i));
+            assertEquals(actual.getColumnAt(i), expected.getColumnAt(i));
+            assertEquals(actual.getExactAt(i), expected.getExactAt(i));
+        }
+        assertEquals(actual.hasDisplayValue(), expected.hasDisplayValue());
+        assertEquals(actual.getDisplayString(), expected.getDisplayString());
+    }
+
+    @Test
+    public void test_xml() throws Exception {
+        Engine engine = fill();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SessionExport(engine).writeXml(Channels.newChannel(out));
+
+        Engine loaded = new Engine(config);
+        loaded.push(42);
+        int count = SessionExport.readXml(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), loaded);
+
+        assertEquals(count, DEPTH + 3);
+        assertSameState(loaded, engine);
+        assertEquals(loaded.getHistorySize(), engine.getHistorySize());
+    }
+
+    @Test
+    public void test_binary() throws Exception {
+        Engine engine = fill();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SessionExport(engine).write(Channels.newChannel(out));
+
+        Engine loaded = new Engine(config);
+        int count = SessionExport.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), loaded);
+
+        assertEquals(count, DEPTH + 3);
+        assertSameState(loaded, engine);
+    }
+
+    @Test
+    public void test_empty() throws Exception {
+        Engine engine = new Engine(config);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SessionExport(engine).writeXml(Channels.newChannel(out));
+
+        Engine loaded = fill();
+        assertEquals(SessionExport.readXml(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), loaded), 0);
+        assertSameState(loaded, engine);
+    }
+
+    @Test
+    public void test_truncated() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SessionExport(fill()).write(Channels.newChannel(out));
+        byte[] bytes = out.toByteArray();
+
+        Engine loaded = new Engine(config);
+        loaded.push(42);
+        try {
+            SessionExport.read(Channels.newChannel(new ByteArrayInputStream(bytes, 0, bytes.length / 2)), loaded);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertEquals(loaded.getDepth(), 0);
+        assertFalse(loaded.hasDisplayValue());
+    }
+
+    @Test
+    public void test_badDisplay() throws Exception {
+        Engine engine = fill();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SessionExport(engine).write(Channels.newChannel(out));
+        byte[] bytes = out.toByteArray();
+        // Magic, version, display flag and length, then "1.2"
+        assertEquals(bytes[12], (byte) '.');
+        bytes[12] = 'x';
+
+        Engine loaded = new Engine(config);
+        try {
+            SessionExport.read(Channels.newChannel(new ByteArrayInputStream(bytes)), loaded);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertEquals(loaded.getDepth(), 0);
+        assertFalse(loaded.hasDisplayValue());
+
+        out.reset();
+        new SessionExport(engine).writeXml(Channels.newChannel(out));
+        String xml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        xml = xml.replace("<display>1.2</display>", "<display>1x2</display>");
+
+        try {
+            SessionExport.readXml(Channels.newChannel(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))), loaded);
+            fail("Expected XMLStreamException");
+        } catch (XMLStreamException ex) {
+            // expected
+        }
+        assertEquals(loaded.getDepth(), 0);
+        assertFalse(loaded.hasDisplayValue());
+
+        // A decimal point on its own is fine
+        loaded.load().setDisplay(".");
+    }
+
+    /**
+     * Export and import an engine with more history than it keeps in memory,
+     * and check undo and redo go the same way in both.
+     */
+    private void checkHistory(boolean xml) throws Exception {
+        List<Button> buttons = new ArrayList<>();
+        for (int i = 0; i < config.getButtonCount(); i += 1) {
+            buttons.add(config.getButton(i));
+        }
+        Config shallow = new Config.Builder().setHistoryDepth(16).addButtons(buttons).build();
+
+        Engine engine = new Engine(shallow);
+        // Enough to spill more than one batch to disk
+        for (int i = 0; i < 1000; i += 1) {
+            engine.push(i);
+        }
+        engine.command("Addition (+)");
+        engine.pushColumn(new double[]{1, 2});
+        engine.command("Number 7");
+        engine.undo();
+        engine.undo();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (xml) {
+            new SessionExport(engine).writeXml(Channels.newChannel(out));
+        } else {
+            new SessionExport(engine).write(Channels.newChannel(out));
+        }
+
+        Engine loaded = new Engine(shallow);
+        loaded.push(42);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        if (xml) {
+            SessionExport.readXml(Channels.newChannel(in), loaded);
+        } else {
+            SessionExport.read(Channels.newChannel(in), loaded);
+        }
+
+        assertEquals(loaded.getHistorySize(), engine.getHistorySize());
+        assertEquals(loaded.getHistoryIndex(), engine.getHistoryIndex());
+        assertEquals(loaded.getOldestHistoryIndex(), engine.getOldestHistoryIndex());
+        assertSameState(loaded, engine);
+
+        loaded.redo();
+        engine.redo();
+        assertSameState(loaded, engine);
+        while (engine.getHistoryIndex() > 990) {
+            loaded.undo();
+            engine.undo();
+            assertSameState(loaded, engine);
+        }
+        loaded.jumpTo(3);
+        engine.jumpTo(3);
+        assertSameState(loaded, engine);
+    }
+
+    @Test
+    public void test_historyXml() throws Exception {
+        checkHistory(true);
+    }
+
+    @Test
+    public void test_historyBinary() throws Exception {
+        checkHistory(false);
+    }
+}
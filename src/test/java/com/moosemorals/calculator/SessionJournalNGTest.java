@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class SessionJournalNGTest {
+
+    private Config config;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        config = new ConfigFileParser().parse(getClass().getResourceAsStream("/config.xml"));
+    }
+
+    private Engine reopen(Path dir, int snapshotInterval) throws Exception {
+        return reopen(dir, snapshotInterval, config);
+    }
+
+    private Engine reopen(Path dir, int snapshotInterval, Config config) throws Exception {
+        Engine engine = new Engine(config);
+        try (SessionJournal journal = new SessionJournal(dir, snapshotInterval)) {
+            journal.replay(engine);
+        }
+        return engine;
+    }
+
+    private static void assertSameState(Engine actual, Engine expected) {
+        assertEquals(actual.getDepth(), expected.getDepth());
+        for (int i = 0; i < expected.getDepth(); i += 1) {
+            assertEquals(actual.getElementAt(i), expected.getElementAt(i));
+        }
+        assertEquals(actual.getColumnAt(0), expected.getColumnAt(0));
+        assertEquals(actual.getDisplayString(), expected.getDisplayString());
+    }
+
+    @Test
+    public void test_replay() throws Exception {
+        Path dir = Files.createTempDirectory("session");
+
+        Engine engine = new Engine(config);
+        try (SessionJournal journal = new SessionJournal(dir, 5)) {
+            journal.replay(engine);
+
+            engine.command("Number 2");
+            engine.command("Enter");
+            engine.command("Number 3");
+            engine.command("Addition (+)");
+            engine.push(7);
+            engine.executeBatch(new Batch().push(4).command(config.getOpcode("Multiplication (*)")));
+            engine.pushColumn(new double[]{1, 2, 3});
+            engine.push(9);
+            engine.undo();
+            engine.command("Number 1");
+            engine.command("Decimal point");
+            journal.flush();
+        }
+
+        Engine restored = reopen(dir, 5);
+        assertSameState(restored, engine);
+
+        // Replay compacts the log, which mustn't lose anything either
+        assertSameState(reopen(dir, 5), engine);
+    }
+
+    @Test
+    public void test_reset() throws Exception {
+        Path dir = Files.createTempDirectory("session");
+
+        Engine engine = new Engine(config);
+        try (SessionJournal journal = new SessionJournal(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL)) {
+            journal.replay(engine);
+            for (int i = 0; i < 100; i += 1) {
+                engine.push(i);
+            }
+            engine.reset();
+            engine.push(42);
+        }
+
+        Engine restored = reopen(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL);
+        assertEquals(restored.getDepth(), 1);
+        assertEquals(restored.peek(), 42.0);
+    }
+
+    @Test
+    public void test_history() throws Exception {
+        Path dir = Files.createTempDirectory("session");
+
+        Engine engine = new Engine(config);
+        try (SessionJournal journal = new SessionJournal(dir, 4)) {
+            journal.replay(engine);
+            for (int i = 0; i < 10; i += 1) {
+                engine.push(i);
+            }
+            // Back past where the last few snapshots were taken, then
+            // forward past the newest command since
+            engine.jumpTo(2);
+            engine.redo();
+            engine.undo();
+            engine.undo();
+            engine.jumpTo(9);
+            engine.undo();
+            engine.command("Number 5");
+            engine.undo();
+            journal.flush();
+        }
+
+        Engine restored = reopen(dir, 4);
+        assertSameState(restored, engine);
+        assertEquals(restored.getHistoryIndex(), engine.getHistoryIndex());
+
+        // The history replay rebuilt matches the one it came from
+        assertTrue(restored.getHistorySize() > restored.getOldestHistoryIndex());
+        for (long i = restored.getOldestHistoryIndex(); i <= restored.getHistorySize(); i += 1) {
+            restored.jumpTo(i);
+            engine.jumpTo(i);
+            assertSameState(restored, engine);
+        }
+    }
+
+    @Test
+    public void test_configChanged() throws Exception {
+        Path dir = Files.createTempDirectory("session");
+
+        Engine engine = new Engine(config);
+        try (SessionJournal journal = new SessionJournal(dir, 3)) {
+            journal.replay(engine);
+            engine.push(1);
+            engine.push(2);
+            // Snapshot after this one
+            engine.undo();
+            engine.command("Number 4");
+            engine.command("Enter");
+        }
+
+        // Same layout, but Addition now subtracts
+        String subtract = config.getButton(config.getOpcode("Subtraction (-)")).getCode();
+        List<Button> buttons = new ArrayList<>();
+        for (int i = 0; i < config.getButtonCount(); i += 1) {
+            Button b = config.getButton(i);
+            buttons.add(new Button.Builder()
+                    .setX(b.getX()).setY(b.getY())
+                    .setWidth(b.getWidth()).setHeight(b.getHeight())
+                    .setIn(b.getIn()).setOut(b.getOut())
+                    .setName(b.getName()).setLabel(b.getLabel()).setKey(b.getKey())
+                    .setCode(b.getName().equals("Addition (+)") ? subtract : b.getCode())
+                    .build());
+        }
+        Config changed = new Config.Builder().addButtons(buttons).build();
+
+        // Only the snapshot survives
+        Engine restored = reopen(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL, changed);
+        assertEquals(restored.getDepth(), 1);
+        assertEquals(restored.peek(), 1.0);
+
+        // From then on commands are journalled against the new buttons
+        try (SessionJournal journal = new SessionJournal(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL)) {
+            journal.replay(restored);
+            restored.command("Number 3");
+            restored.command("Addition (+)");
+        }
+        Engine again = reopen(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL, changed);
+        assertEquals(again.getDepth(), 1);
+        assertEquals(again.peek(), -2.0);
+    }
+
+    @Test
+    public void test_unreadable() throws Exception {
+        Path dir = Files.createTempDirectory("session");
+        Files.write(dir.resolve("session.snapshot"), new byte[]{1, 2, 3});
+
+        Engine engine = new Engine(config);
+        try (SessionJournal journal = new SessionJournal(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL)) {
+            journal.replay(engine);
+            assertEquals(engine.getDepth(), 0);
+            engine.push(5);
+        }
+        assertTrue(Files.exists(dir.resolve("session.snapshot.bad")));
+        assertTrue(Files.exists(dir.resolve("session.log.bad")));
+
+        // The new journal works
+        Engine restored = reopen(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL);
+        assertEquals(restored.getDepth(), 1);
+        assertEquals(restored.peek(), 5.0);
+    }
+
+    @Test
+    public void test_moveAside() throws Exception {
+        Path dir = Files.createTempDirectory("session");
+
+        Engine engine = new Engine(config);
+        try (SessionJournal journal = new SessionJournal(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL)) {
+            journal.replay(engine);
+            engine.push(5);
+        }
+        SessionJournal.moveAside(dir);
+        assertTrue(Files.exists(dir.resolve("session.log.bad")));
+
+        assertEquals(reopen(dir, SessionJournal.DEFAULT_SNAPSHOT_INTERVAL).getDepth(), 0);
+    }
+}
@@ -24,6 +24,8 @@
 package com.moosemorals.calculator;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import org.testng.annotations.Test;
 
@@ -106,4 +108,79 @@ public class StackNGTest {
         assertEquals(s.getDepth(), 1);
     }
 
+    @Test
+    public void test_copyTo() {
+        Stack s = new Stack();
+        for (int i = 0; i < 10; i += 1) {
+            s.push(i);
+        }
+        double[] dest = new double[4];
+        assertEquals(s.copyTo(2, 4, dest), 4);
+        assertEquals(dest[0], 7, 0.1);
+        assertEquals(dest[3], 4, 0.1);
+    }
+
+    @Test
+    public void test_copyToExtras() {
+        Stack s = new Stack();
+        double[] column = {1, 2};
+        s.push(3);
+        s.pushColumn(column);
+        s.push(4);
+
+        double[] dest = new double[4];
+        Object[] extras = new Object[4];
+        assertEquals(s.copyTo(0, 4, dest, extras), 3);
+        assertEquals(dest[0], 4.0);
+        assertNull(extras[0]);
+        assertSame(extras[1], column);
+        assertEquals(dest[2], 3.0);
+        assertNull(extras[2]);
+    }
+
+    @Test
+    public void test_copyToShort() {
+        Stack s = new Stack();
+        s.push(1);
+        s.push(2);
+        double[] dest = new double[4];
+        assertEquals(s.copyTo(1, 4, dest), 1);
+        assertEquals(dest[0], 1, 0.1);
+        assertEquals(s.copyTo(5, 4, dest), 0);
+    }
+
+    @Test
+    public void test_toString() {
+        Stack s = new Stack();
+        s.push(1);
+        s.push(2);
+        assertEquals(s.toString(), "[2.0, 1.0]");
+    }
+
+    @Test
+    public void test_columns() {
+        Stack s = new Stack();
+        s.push(1);
+        assertEquals(s.extrasToArray(), null);
+
+        s.pushColumn(new double[]{2, 3});
+        s.push(4);
+        assertEquals(s.peekColumn(), null);
+        assertEquals(s.peekColumn(1), new double[]{2, 3});
+        assertTrue(Double.isNaN(s.peek(1)));
+        assertEquals(s.toString(), "[4.0, [2.0, 3.0], 1.0]");
+
+        double[] values = s.toArray();
+        Object[] extras = s.extrasToArray();
+        s.reset();
+        s.load(values, extras);
+        assertEquals(s.getDepth(), 3);
+        assertEquals(s.peekColumn(1), new double[]{2, 3});
+
+        s.pop();
+        s.pop();
+        s.push(5);
+        assertEquals(s.peekColumn(), null);
+    }
+
 }
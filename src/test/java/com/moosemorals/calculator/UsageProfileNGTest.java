@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator;
+
+import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.util.prefs.Preferences;
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class UsageProfileNGTest {
+
+    private Config config;
+    private Preferences prefs;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        config = new ConfigFileParser().parse(getClass().getResourceAsStream("/config.xml"));
+    }
+
+    @BeforeMethod
+    public void createNode() {
+        prefs = Preferences.userNodeForPackage(UsageProfileNGTest.class).node("usage-test-" + System.nanoTime());
+    }
+
+    @AfterMethod
+    public void removeNode() throws Exception {
+        prefs.removeNode();
+    }
+
+    @Test
+    public void test_hottest() {
+        int add = config.getOpcode("Addition (+)");
+        int sin = config.getOpcode("Sin");
+        int one = config.getOpcode("Number 1");
+
+        UsageProfile usage = new UsageProfile(prefs, config);
+        for (int i = 0; i < 5; i += 1) {
+            usage.record(add);
+        }
+        usage.record(sin);
+        for (int i = 0; i < 3; i += 1) {
+            usage.record(one);
+        }
+        usage.save();
+
+        // Counts come back by name on the next run
+        UsageProfile reloaded = new UsageProfile(prefs, config);
+        assertEquals(reloaded.getCount(add), 5);
+        assertEquals(reloaded.getHottest(10), new int[]{add, one, sin});
+        assertEquals(reloaded.getHottest(2), new int[]{add, one});
+    }
+
+    @Test
+    public void test_warmUp() throws Exception {
+        ButtonLibrary library = new ButtonLibrary(config);
+        int[] hot = {config.getOpcode("Addition (+)"), config.getOpcode("Number 1"), config.getOpcode("Clear")};
+        UsageProfile.warmUp(library, hot);
+
+        // The library still works afterwards
+        Engine e = new Engine(library);
+        e.push(2);
+        e.push(3);
+        e.command("Addition (+)");
+        assertEquals(e.peek(), 5.0);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.server;
+
+import com.moosemorals.calculator.Config;
+import com.moosemorals.calculator.xml.ConfigFileParser;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class ServerNGTest {
+
+    private static final double FUDGE = 0.0001;
+
+    private final Logger log = LoggerFactory.getLogger(ServerNGTest.class);
+    private Config config;
+    private Server server;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        config = new ConfigFileParser().parse(getClass().getResourceAsStream("/config.xml"));
+        server = new Server(config, new InetSocketAddress("127.0.0.1", 0), 2);
+    }
+
+    @AfterClass
+    public void teardown() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Blocking client that queues requests up and sends them all at once.
+     */
+    private static final class Client implements AutoCloseable {
+
+        private final SocketChannel channel;
+        private final ByteBuffer requests = ByteBuffer.allocate(64 * 1024);
+        private final ByteBuffer response = ByteBuffer.allocate(4 + Protocol.RESPONSE_LENGTH);
+        private int queued;
+
+        Client(InetSocketAddress address) throws IOException {
+            channel = SocketChannel.open(address);
+        }
+
+        Client op(int opcode) {
+            requests.putInt(5).put(Protocol.OP).putInt(opcode);
+            queued += 1;
+            return this;
+        }
+
+        Client push(double value) {
+            requests.putInt(9).put(Protocol.PUSH).putDouble(value);
+            queued += 1;
+            return this;
+        }
+
+        Client undo() {
+            requests.putInt(1).put(Protocol.UNDO);
+            queued += 1;
+            return this;
+        }
+
+        Client redo() {
+            requests.putInt(1).put(Protocol.REDO);
+            queued += 1;
+            return this;
+        }
+
+        Client peek(int index) {
+            requests.putInt(5).put(Protocol.PEEK).putInt(index);
+            queued += 1;
+            return this;
+        }
+
+        /**
+         * Send everything queued and read all the responses.
+         *
+         * @return responses, in order
+         */
+        List<double[]> flush() throws IOException {
+            requests.flip();
+            while (requests.hasRemaining()) {
+                channel.write(requests);
+            }
+            requests.clear();
+
+            List<double[]> result = new ArrayList<>(queued);
+            for (; queued > 0; queued -= 1) {
+                response.clear();
+                while (response.hasRemaining()) {
+                    if (channel.read(response) < 0) {
+                        throw new IOException("Server went away");
+                    }
+                }
+                response.flip();
+                assertEquals(response.getInt(), Protocol.RESPONSE_LENGTH);
+                result.add(new double[]{response.get(), response.getInt(), response.getDouble()});
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void test_session() throws Exception {
+        int add = config.getOpcode("Addition (+)");
+        try (Client client = new Client(server.getAddress())) {
+            List<double[]> r = client.push(2).push(3).op(add).undo().redo().peek(0).peek(5)
+                    .op(config.getOpcode("Number 4")).op(-1).flush();
+
+            assertEquals(r.size(), 9);
+            assertEquals(r.get(2)[2], 5.0, FUDGE);
+            assertEquals(r.get(2)[1], 1.0);
+            assertEquals(r.get(3)[2], 3.0, FUDGE);
+            assertEquals(r.get(3)[1], 2.0);
+            assertEquals(r.get(4)[2], 5.0, FUDGE);
+            assertEquals(r.get(5)[2], 5.0, FUDGE);
+            assertEquals(r.get(6)[0], (double) Protocol.STATUS_ERROR);
+            assertEquals(r.get(7)[2], 4.0, FUDGE);
+            assertEquals(r.get(8)[0], (double) Protocol.STATUS_ERROR);
+        }
+    }
+
+    @Test
+    public void test_load() throws Exception {
+        final int sessions = 32;
+        final int rounds = 200;
+        final int window = 50;
+        final int add = config.getOpcode("Addition (+)");
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        long start = System.nanoTime();
+        try {
+            List<Future<Double>> results = new ArrayList<>();
+            for (int s = 0; s < sessions; s += 1) {
+                final int session = s;
+                results.add(pool.submit(() -> {
+                    try (Client client = new Client(server.getAddress())) {
+                        client.push(session).flush();
+                        double last = Double.NaN;
+                        for (int i = 0; i < rounds; i += window) {
+                            for (int j = 0; j < window; j += 1) {
+                                client.push(1).op(add).push(7).undo();
+                            }
+                            List<double[]> r = client.flush();
+                            last = r.get(r.size() - 1)[2];
+                        }
+                        return last;
+                    }
+                }));
+            }
+            for (int s = 0; s < sessions; s += 1) {
+                assertEquals(results.get(s).get(), (double) (s + rounds), FUDGE);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        long requests = (long) sessions * (rounds * 4 + 1);
+        log.info("{} requests over {} sessions in {}ms ({} per second)", requests, sessions,
+                elapsed / 1000000, requests * 1000000000L / elapsed);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Osric Wilkinson (osric@fluffypeople.com).
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.moosemorals.calculator.ui;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author Osric Wilkinson (osric@fluffypeople.com)
+ */
+public class FastFormatNGTest {
+
+    private static DecimalFormat reference() {
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+        symbols.setNaN("Err");
+        return new DecimalFormat(UI.DISPLAY_PATTERN, symbols);
+    }
+
+    @Test
+    public void test_edgeCases() {
+        DecimalFormat df = reference();
+        FastFormat format = new FastFormat();
+
+        double[] values = {0, -0.0, 1, -1, 0.5, 1234567.25, -1234.000001,
+            0.0078125, 0.0000005, -0.0000001, 999999.9999999, 99999999.9999996,
+            1e8, 1e20, Double.MAX_VALUE, Double.MIN_VALUE, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.1 + 0.2};
+
+        for (double v : values) {
+            assertEquals(format.format(v), df.format(v), "Formatting " + v);
+        }
+    }
+
+    @Test
+    public void test_random() {
+        DecimalFormat df = reference();
+        FastFormat format = new FastFormat();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i += 1) {
+            double v = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12) - 3);
+            assertEquals(format.format(v), df.format(v), "Formatting " + v);
+        }
+
+        // Exact binary fractions land on ties at the seventh decimal place
+        for (int i = 0; i < 100000; i += 1) {
+            double v = i / 1024.0;
+            assertEquals(format.format(v), df.format(v), "Formatting " + v);
+        }
+    }
+}
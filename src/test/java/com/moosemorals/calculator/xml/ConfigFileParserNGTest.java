@@ -42,4 +42,22 @@ public class ConfigFileParserNGTest {
         assertEquals(config.getSize(), 48);
 
     }
+
+    @Test
+    public void test_opcodes() throws Exception {
+
+        Config config = new ConfigFileParser().parse(getClass().getResourceAsStream("/config.xml"));
+
+        for (int i = 0; i < config.getButtonCount(); i += 1) {
+            assertEquals(config.getOpcode(config.getButton(i).getName()), i);
+        }
+
+        int opcode = config.getOpcodeForKey('7');
+        assertEquals(config.getButton(opcode).getName(), "Number 7");
+        assertEquals(config.getButton(config.getOpcodeForKey('\n')).getName(), "Enter");
+        assertEquals(config.getOpcodeForKey('z'), Config.NO_OPCODE);
+        assertEquals(config.getOpcodeForKey('\u221A'), Config.NO_OPCODE);
+        assertEquals(config.getOpcode("No such button"), Config.NO_OPCODE);
+
+    }
 }